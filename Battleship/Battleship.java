@@ -1,88 +1,257 @@
 package battleship;
 
-import java.nio.CharBuffer;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Scanner;
-import java.util.stream.Collectors;
+import java.util.SplittableRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
 
 public final class Battleship {
-    public static void main(String[] args) {
-        new Game();
+    public static void main(String[] args) throws InterruptedException, ExecutionException, IOException {
+        int size = Rules.STANDARD.size;
+        String fleet = null;
+        boolean againstComputer = false;
+        boolean ansi = false;
+        String mode = "play";
+        long games = 100_000;
+        int workers = Runtime.getRuntime().availableProcessors();
+        long seed = System.nanoTime();
+        String[] strategies = FiringStrategy.NAMES;
+        int port = GameServer.DEFAULT_PORT;
+        String storePath = MatchStore.DEFAULT_PATH;
+
+        for (final String argument : args) {
+            if (argument.startsWith("--size=")) {
+                size = Integer.parseInt(argument.substring("--size=".length()));
+            } else if (argument.startsWith("--fleet=")) {
+                fleet = argument.substring("--fleet=".length());
+            } else if ("--computer".equals(argument)) {
+                againstComputer = true;
+            } else if ("--ansi".equals(argument)) {
+                ansi = true;
+            } else if (argument.startsWith("--games=")) {
+                games = Long.parseLong(argument.substring("--games=".length()));
+            } else if (argument.startsWith("--workers=")) {
+                workers = Integer.parseInt(argument.substring("--workers=".length()));
+            } else if (argument.startsWith("--seed=")) {
+                seed = Long.parseLong(argument.substring("--seed=".length()));
+            } else if (argument.startsWith("--strategies=")) {
+                strategies = argument.substring("--strategies=".length()).split(",");
+            } else if (argument.startsWith("--port=")) {
+                port = Integer.parseInt(argument.substring("--port=".length()));
+            } else if (argument.startsWith("--store=")) {
+                storePath = argument.substring("--store=".length());
+            } else {
+                mode = argument;
+            }
+        }
+
+        final Rules rules;
+        try {
+            rules = fleet == null && size == Rules.STANDARD.size ? Rules.STANDARD : Rules.parse(size, fleet);
+        } catch (IllegalArgumentException exception) {
+            System.out.printf("Error! %s%n", exception.getMessage());
+            return;
+        }
+
+        if ("tournament".equals(mode)) {
+            try {
+                new Tournament(rules, strategies, games, workers, seed).run();
+            } catch (IllegalArgumentException exception) {
+                System.out.printf("Error! %s%n", exception.getMessage());
+            }
+            return;
+        }
+
+        if ("server".equals(mode)) {
+            final MatchStore store = MatchStore.open(Paths.get(storePath));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    store.close();
+                } catch (IOException exception) {
+                    System.err.printf("Error! Could not close the match store: %s%n", exception.getMessage());
+                }
+            }));
+            new GameServer(port, rules, store).run();
+            return;
+        }
+
+        if (againstComputer && !rules.isDense()) {
+            System.out.printf("Error! The computer plays on boards of up to %d cells%n", Fleet.DENSE_CELLS);
+            return;
+        }
+
+        final BoardRenderer renderer = new BoardRenderer(System.out, ansi);
+        if (ansi) {
+            Runtime.getRuntime().addShutdownHook(new Thread(renderer::close));
+        }
+        new Game(rules, againstComputer, renderer);
     }
 }
 
 final class Game {
-    private final Scanner scanner = new Scanner(System.in);
+    // The console both players share, null when each has their own
+    private final Scanner scanner;
+    private final Rules rules;
+    private final BoardRenderer renderer;
+    // Told how long the server took over every shot, and about the shot itself, null for local games
+    private final LongConsumer turnTimer;
+    private final ShotListener listener;
     private Player player1;
     private Player currentPlayer;
     private Player enemyPlayer;
+    // Player 2 when playing against the computer, null when two people share the console
+    private Player computer;
+    private DensityTargeting targeting;
     private boolean continuePlaying = true;
 
-    public Game() {
-        this.createPlayers();
+    public Game(final Rules rules, final boolean againstComputer, final BoardRenderer renderer) {
+        this.scanner = new Scanner(System.in);
+        this.rules = rules;
+        this.renderer = renderer;
+        this.turnTimer = null;
+        this.listener = null;
+
+        if (againstComputer) {
+            this.createComputerGame();
+        } else {
+            this.createPlayers();
+            this.passMove();
+        }
+        this.start();
+    }
+
+    // A match between two players who have placed their ships, each on their own connection. The first to
+    // shoot is 0 for player 1 and 1 for player 2, which lets a match carry on where it stopped.
+    public Game(final Rules rules, final Player player1, final Player player2, final int firstShooter,
+                final LongConsumer turnTimer, final ShotListener listener) {
+        this.scanner = null;
+        this.rules = rules;
+        this.renderer = null;
+        this.turnTimer = turnTimer;
+        this.listener = listener;
+        this.player1 = player1;
+        this.currentPlayer = firstShooter == 0 ? player1 : player2;
+        this.enemyPlayer = firstShooter == 0 ? player2 : player1;
         this.start();
     }
 
+    private void createComputerGame() {
+        final Random random = new Random();
+        System.out.println("Place your ships on the game field\n");
+        this.player1 = new Player(this.scanner, System.out, this.rules, this.renderer);
+        this.computer = new Player(new FleetGenerator(this.rules.size, this.rules.shipLengths, random.nextLong()), this.rules);
+        this.targeting = new DensityTargeting(this.rules.size, this.rules.shipLengths, random);
+        this.currentPlayer = this.player1;
+        this.enemyPlayer = this.computer;
+        System.out.println("\nThe computer has placed its ships. The game starts!\n");
+    }
+
     private void createPlayers() {
         System.out.println("Player 1, place your ships on the game field\n");
-        this.player1 = new Player(this.scanner);
+        this.player1 = new Player(this.scanner, System.out, this.rules, this.renderer);
         this.passMove();
         System.out.println("Player 2, place your ships on the game field");
-        this.currentPlayer = new Player(this.scanner);
+        this.currentPlayer = new Player(this.scanner, System.out, this.rules, this.renderer);
         this.enemyPlayer = this.player1;
     }
 
     private void passMove() {
-        System.out.print("\nPress Enter and pass the move to another player");
-        String next = this.scanner.nextLine();
-        while (!"".equals(next)) {
-            next = this.scanner.nextLine();
+        if (this.computer == null && this.scanner != null) {
+            System.out.print("\nPress Enter and pass the move to another player");
+            String next = this.scanner.nextLine();
+            while (!"".equals(next)) {
+                next = this.scanner.nextLine();
+            }
+            System.out.println("\n".repeat(20));
+            this.renderer.clear();
         }
-        System.out.println("\n".repeat(20));
         final Player temp = this.currentPlayer;
         this.currentPlayer = this.enemyPlayer;
         this.enemyPlayer = temp;
     }
 
     private void start() {
-        this.passMove();
         while (this.continuePlaying) {
+            if (this.currentPlayer == this.computer) {
+                this.computerShoot();
+                continue;
+            }
+
             this.printCurrentPlayerBoards();
             this.shoot();
         }
     }
 
     private void printCurrentPlayerBoards() {
-        this.enemyPlayer.printFoggedBoard();
-        System.out.println("-".repeat(21));
-        this.currentPlayer.printBoard();
+        this.currentPlayer.printBoards(this.enemyPlayer);
     }
 
     private void shoot() {
         final String whichPlayer = this.currentPlayer == this.player1 ? "Player 1" : "Player 2";
-        System.out.printf("%n%s, it's your turn:%n", whichPlayer);
-
-        String target = this.scanner.nextLine();
-
-        while (this.enemyPlayer.isCoordinateInvalid(target)) {
-            target = this.scanner.nextLine();
-        }
-
-        final int row = Helpers.charToIndex(target.charAt(0));
-        final int column = Integer.parseInt(target.substring(1)) - 1;
+        final PrintStream out = this.currentPlayer.getOut();
+        out.printf("%n%s, it's your turn:%n", whichPlayer);
+
+        final int cell = this.currentPlayer.readShot();
+        final long start = System.nanoTime();
+        final int row = cell / this.rules.size;
+        final int column = cell % this.rules.size;
+        final ShotResult result = this.enemyPlayer.fire(row, column);
         String message;
 
-        switch (this.enemyPlayer.getCell(row, column)) {
-            case 'O':
-                this.enemyPlayer.setCell(row, column, 'X');
-                message = this.enemyPlayer.parseHit(row, column);
+        switch (result) {
+            case HIT:
+                message = "You hit a ship!";
+                break;
+            case SUNK:
+                message = "You sank a ship!";
                 break;
-            case '~':
-                this.enemyPlayer.setCell(row, column, 'M');
+            case MISS:
                 message = "You missed!";
                 break;
-            case 'X':
-            case 'M':
+            case REPEATED:
             default:
                 message = "You've already shot there.";
                 break;
@@ -94,20 +263,78 @@ final class Game {
             message = "You sank the last ship. You won. Congratulations!";
         }
 
-        System.out.println(message);
+        out.println(message);
+
+        if (this.listener != null) {
+            this.listener.shotFired(this.currentPlayer == this.player1 ? 0 : 1, cell, !this.continuePlaying);
+        }
+
+        if (this.scanner == null) {
+            this.enemyPlayer.getOut().printf("%nYour opponent fires at %s%d. %s%n", Helpers.getRowLabel(row), column + 1,
+                    this.getIncomingMessage(result));
+        }
+
+        if (this.turnTimer != null) {
+            this.turnTimer.accept(System.nanoTime() - start);
+        }
+
+        if (this.continuePlaying) {
+            this.passMove();
+        }
+    }
+
+    private void computerShoot() {
+        final int cell = this.targeting.nextShot();
+        final int row = cell / this.rules.size;
+        final int column = cell % this.rules.size;
+        final ShotResult result = this.enemyPlayer.fire(row, column);
+        this.targeting.record(cell, result);
+        this.continuePlaying = !this.enemyPlayer.isEnd();
+
+        this.enemyPlayer.getOut().printf("%nThe computer fires at %s%d. %s%n%n", Helpers.getRowLabel(row), column + 1,
+                this.getIncomingMessage(result));
 
         if (this.continuePlaying) {
             this.passMove();
         }
     }
+
+    // What the player fired at is told about the shot
+    private String getIncomingMessage(final ShotResult result) {
+        if (!this.continuePlaying) {
+            return "It sank your last ship. You lost.";
+        }
+
+        switch (result) {
+            case HIT:
+                return "It hit your ship!";
+            case SUNK:
+                return "It sank your ship!";
+            case REPEATED:
+                return "It fired where it already had.";
+            case MISS:
+            default:
+                return "It missed!";
+        }
+    }
+}
+
+// Told about every shot a match resolves, player 1 being shooter 0
+interface ShotListener {
+    void shotFired(int shooter, int cell, boolean gameOver);
+}
+
+enum ShotResult {
+    MISS,
+    HIT,
+    SUNK,
+    REPEATED
 }
 
 final class Ship {
-    final private int[][] coordinates;
     private int leftCells;
 
-    Ship(final int length, final int[][] coordinates) {
-        this.coordinates = coordinates;
+    Ship(final int length) {
         this.leftCells = length;
     }
 
@@ -118,81 +345,445 @@ final class Ship {
     boolean isSunk() {
         return this.leftCells == 0;
     }
+}
+
+// One player's ships: which ship covers every cell, which cells have been fired at and how many ships are
+// still afloat, so resolving a shot or checking for the end of the game never searches. Boards of up to
+// DENSE_CELLS cells keep bitmasks, larger ones only remember the cells that hold ships or have been shot.
+abstract class Fleet {
+    static final int NO_SHIP = -1;
+    static final int DENSE_CELLS = 1024;
+
+    private final Ship[] ships;
+    // Where each ship lies: its first cell, the step to the next one and its length
+    private final int[] firstCells;
+    private final int[] steps;
+    private final int[] lengths;
+    private int shipCount;
+    private int remainingShips;
+    private int shots;
+    private int hits;
+
+    Fleet(final int maxShips) {
+        this.ships = new Ship[maxShips];
+        this.firstCells = new int[maxShips];
+        this.steps = new int[maxShips];
+        this.lengths = new int[maxShips];
+    }
 
-    boolean isThere(final int[] coordinate) {
-        boolean answer = false;
+    static Fleet create(final int cells, final int maxShips) {
+        return cells <= DENSE_CELLS ? new BitboardFleet(cells, maxShips) : new SparseFleet(maxShips);
+    }
 
-        for (final int[] shipCoordinate : this.coordinates) {
-            if (shipCoordinate[0] == coordinate[0] && shipCoordinate[1] == coordinate[1]) {
-                answer = true;
-                break;
+    // A fleet laid out by the generator
+    static Fleet generate(final Rules rules, final FleetGenerator generator) {
+        final Fleet fleet = create(rules.getCells(), rules.shipLengths.length);
+        final int[] chosen = new int[rules.shipLengths.length];
+        generator.next(chosen);
+
+        for (int ship = 0; ship < chosen.length; ship++) {
+            final ShipPlacements placements = generator.getPlacements(ship);
+            final int[] cells = new int[placements.length];
+            final int step = placements.getStep(chosen[ship]);
+
+            for (int index = 0, cell = placements.getFirstCell(chosen[ship]); index < cells.length; index++, cell += step) {
+                cells[index] = cell;
+            }
+            fleet.addShip(new Ship(placements.length), cells);
+        }
+
+        return fleet;
+    }
+
+    abstract boolean isShipAt(int cell);
+
+    abstract boolean isShotAt(int cell);
+
+    abstract int getShip(int cell);
+
+    abstract void setShip(int cell, int ship);
+
+    // Returns false when the cell had been shot already
+    abstract boolean markShot(int cell);
+
+    void addShip(final Ship ship, final int[] cells) {
+        for (final int cell : cells) {
+            this.setShip(cell, this.shipCount);
+        }
+
+        this.firstCells[this.shipCount] = cells[0];
+        this.steps[this.shipCount] = cells.length > 1 ? cells[1] - cells[0] : 1;
+        this.lengths[this.shipCount] = cells.length;
+        this.ships[this.shipCount++] = ship;
+        this.remainingShips++;
+    }
+
+    ShotResult fire(final int cell) {
+        if (!this.markShot(cell)) {
+            return ShotResult.REPEATED;
+        }
+
+        this.shots++;
+        final int index = this.getShip(cell);
+        if (index == NO_SHIP) {
+            return ShotResult.MISS;
+        }
+
+        this.hits++;
+        final Ship ship = this.ships[index];
+        ship.markShot();
+        if (!ship.isSunk()) {
+            return ShotResult.HIT;
+        }
+
+        this.remainingShips--;
+        return ShotResult.SUNK;
+    }
+
+    boolean isDestroyed() {
+        return this.remainingShips == 0;
+    }
+
+    int getShipCount() {
+        return this.shipCount;
+    }
+
+    int getFirstCell(final int ship) {
+        return this.firstCells[ship];
+    }
+
+    int getStep(final int ship) {
+        return this.steps[ship];
+    }
+
+    int getLength(final int ship) {
+        return this.lengths[ship];
+    }
+
+    int getRemainingShips() {
+        return this.remainingShips;
+    }
+
+    int getShots() {
+        return this.shots;
+    }
+
+    int getHits() {
+        return this.hits;
+    }
+
+    // What the board shows for a cell: X for a hit, M for a miss, O for an unhit ship and ~ for open water
+    char getSymbol(final int cell) {
+        if (this.isShotAt(cell)) {
+            return this.isShipAt(cell) ? 'X' : 'M';
+        }
+
+        return this.isShipAt(cell) ? 'O' : '~';
+    }
+}
+
+// Bitmasks over the cells, numbered row by row, and the ship on every cell
+final class BitboardFleet extends Fleet {
+    private final long[] shipCells;
+    private final long[] shotCells;
+    private final int[] cellShips;
+
+    BitboardFleet(final int cells, final int maxShips) {
+        super(maxShips);
+        this.shipCells = new long[(cells + 63) >>> 6];
+        this.shotCells = new long[(cells + 63) >>> 6];
+        this.cellShips = new int[cells];
+        Arrays.fill(this.cellShips, NO_SHIP);
+    }
+
+    @Override
+    boolean isShipAt(final int cell) {
+        return (this.shipCells[cell >>> 6] & 1L << cell) != 0;
+    }
+
+    @Override
+    boolean isShotAt(final int cell) {
+        return (this.shotCells[cell >>> 6] & 1L << cell) != 0;
+    }
+
+    @Override
+    int getShip(final int cell) {
+        return this.cellShips[cell];
+    }
+
+    @Override
+    void setShip(final int cell, final int ship) {
+        this.shipCells[cell >>> 6] |= 1L << cell;
+        this.cellShips[cell] = ship;
+    }
+
+    @Override
+    boolean markShot(final int cell) {
+        final long before = this.shotCells[cell >>> 6];
+        this.shotCells[cell >>> 6] = before | 1L << cell;
+        return (before & 1L << cell) == 0;
+    }
+}
+
+// Hash tables holding only the cells with ships and the cells fired at, for maps of up to a million cells
+final class SparseFleet extends Fleet {
+    private final CellTable shipCells = new CellTable();
+    private final CellTable shotCells = new CellTable();
+
+    SparseFleet(final int maxShips) {
+        super(maxShips);
+    }
+
+    @Override
+    boolean isShipAt(final int cell) {
+        return this.shipCells.contains(cell);
+    }
+
+    @Override
+    boolean isShotAt(final int cell) {
+        return this.shotCells.contains(cell);
+    }
+
+    @Override
+    int getShip(final int cell) {
+        final int ship = this.shipCells.get(cell);
+        return ship == CellTable.MISSING ? NO_SHIP : ship;
+    }
+
+    @Override
+    void setShip(final int cell, final int ship) {
+        this.shipCells.put(cell, ship);
+    }
+
+    @Override
+    boolean markShot(final int cell) {
+        return this.shotCells.put(cell, 0) == CellTable.MISSING;
+    }
+}
+
+// Open addressing table from cell numbers to non-negative values, growing with the cells put into it
+final class CellTable {
+    static final int MISSING = -1;
+    private static final int EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    CellTable() {
+        this.keys = new int[INITIAL_CAPACITY];
+        this.values = new int[INITIAL_CAPACITY];
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    private int slotOf(final int cell) {
+        final int mask = this.keys.length - 1;
+        int slot = cell * 0x9E3779B9 >>> 7 & mask;
+
+        while (this.keys[slot] != EMPTY && this.keys[slot] != cell) {
+            slot = slot + 1 & mask;
+        }
+
+        return slot;
+    }
+
+    boolean contains(final int cell) {
+        return this.keys[this.slotOf(cell)] == cell;
+    }
+
+    int get(final int cell) {
+        final int slot = this.slotOf(cell);
+        return this.keys[slot] == cell ? this.values[slot] : MISSING;
+    }
+
+    // Returns the value the cell had, or MISSING
+    int put(final int cell, final int value) {
+        final int slot = this.slotOf(cell);
+
+        if (this.keys[slot] == cell) {
+            final int previous = this.values[slot];
+            this.values[slot] = value;
+            return previous;
+        }
+
+        this.keys[slot] = cell;
+        this.values[slot] = value;
+        if (++this.size * 2 > this.keys.length) {
+            this.grow();
+        }
+
+        return MISSING;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    void clear() {
+        if (this.size > 0) {
+            Arrays.fill(this.keys, EMPTY);
+            this.size = 0;
+        }
+    }
+
+    private void grow() {
+        final int[] keys = this.keys;
+        final int[] values = this.values;
+        this.keys = new int[keys.length * 2];
+        this.values = new int[keys.length * 2];
+        Arrays.fill(this.keys, EMPTY);
+
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                final int newSlot = this.slotOf(keys[slot]);
+                this.keys[newSlot] = keys[slot];
+                this.values[newSlot] = values[slot];
+            }
+        }
+    }
+}
+
+// Board size and fleet. Boards are square, from MIN_SIZE to MAX_SIZE cells on a side
+final class Rules {
+    static final int MIN_SIZE = 2;
+    static final int MAX_SIZE = 1000;
+    static final Rules STANDARD = new Rules(10, new String[] {"Aircraft Carrier", "Battleship", "Submarine", "Cruiser", "Destroyer"},
+            new int[] {5, 4, 3, 3, 2});
+
+    final int size;
+    final String[] shipNames;
+    final int[] shipLengths;
+
+    Rules(final int size, final String[] shipNames, final int[] shipLengths) {
+        if (size < MIN_SIZE || size > MAX_SIZE) {
+            throw new IllegalArgumentException(String.format("Board size should be from %d to %d", MIN_SIZE, MAX_SIZE));
+        }
+
+        if (shipLengths.length == 0 || shipNames.length != shipLengths.length) {
+            throw new IllegalArgumentException("The fleet needs at least one ship, each with a name and a length");
+        }
+
+        for (final int length : shipLengths) {
+            if (length < 1 || length > size) {
+                throw new IllegalArgumentException(String.format("Ship lengths should be from 1 to %d", size));
             }
         }
 
-        return answer;
+        this.size = size;
+        this.shipNames = shipNames;
+        this.shipLengths = shipLengths;
+    }
+
+    // The fleet is a comma separated list of name:length pairs, the standard one when null
+    static Rules parse(final int size, final String fleet) {
+        if (fleet == null) {
+            return new Rules(size, STANDARD.shipNames, STANDARD.shipLengths);
+        }
+
+        final String[] ships = fleet.split(",");
+        final String[] names = new String[ships.length];
+        final int[] lengths = new int[ships.length];
+
+        for (int index = 0; index < ships.length; index++) {
+            final int separator = ships[index].lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Fleet should look like Cruiser:3,Destroyer:2");
+            }
+
+            names[index] = ships[index].substring(0, separator).trim();
+            try {
+                lengths[index] = Integer.parseInt(ships[index].substring(separator + 1).trim());
+            } catch (NumberFormatException numberFormatException) {
+                throw new IllegalArgumentException("Ship length should be a number: " + ships[index]);
+            }
+        }
+
+        return new Rules(size, names, lengths);
+    }
+
+    int getCells() {
+        return this.size * this.size;
+    }
+
+    boolean isDense() {
+        return this.getCells() <= Fleet.DENSE_CELLS;
     }
 }
 
 final class Player {
     private final Scanner scanner;
-    private char[][] board;
-    private Ship aircraftCarrier;
-    private Ship battleship;
-    private Ship submarine;
-    private Ship cruiser;
-    private Ship destroyer;
-
-    public Player(final Scanner scanner) {
+    private final PrintStream out;
+    private final Rules rules;
+    private final BoardRenderer renderer;
+    private final int size;
+    private final Fleet fleet;
+
+    public Player(final Scanner scanner, final PrintStream out, final Rules rules, final BoardRenderer renderer) {
         this.scanner = scanner;
-        this.createBoard();
+        this.out = out;
+        this.rules = rules;
+        this.renderer = renderer;
+        this.size = rules.size;
+        this.fleet = Fleet.create(rules.getCells(), rules.shipLengths.length);
         this.printBoard();
         this.placeShips();
     }
 
-    private void createBoard() {
-        final char[][] board = new char[10][10];
-        for (final char[] row : board) {
-            Arrays.fill(row, '~');
-        }
-        this.board = board;
+    // A player coming back to a match, whose ships are where they were left
+    public Player(final Scanner scanner, final PrintStream out, final Rules rules, final BoardRenderer renderer, final Fleet fleet) {
+        this.scanner = scanner;
+        this.out = out;
+        this.rules = rules;
+        this.renderer = renderer;
+        this.size = rules.size;
+        this.fleet = fleet;
     }
 
-    private void printBoard(final boolean fogged) {
-        System.out.println("  1 2 3 4 5 6 7 8 9 10");
+    // A computer player, whose ships go wherever the generator puts them
+    public Player(final FleetGenerator generator, final Rules rules) {
+        this.scanner = null;
+        this.out = null;
+        this.rules = rules;
+        this.renderer = null;
+        this.size = rules.size;
+        this.fleet = Fleet.generate(rules, generator);
+    }
 
-        for (int index = 0; index < this.board.length; index++) {
-            final String joined = CharBuffer.wrap(this.board[index]).chars()
-                    .mapToObj(intValue -> String.valueOf((char) intValue))
-                    .collect(Collectors.joining(" "));
+    public void printBoard() {
+        this.renderer.printBoard(this.fleet, this.size);
+    }
 
-            System.out.printf("%c %s%n", Helpers.indexToChar(index), fogged ? joined.replaceAll("O", "~") : joined);
-        }
+    // The enemy's board fogged above this player's own
+    public void printBoards(final Player enemy) {
+        this.renderer.printFrame(this, enemy.fleet, this.fleet, this.size);
     }
 
-    public void printBoard() {
-        this.printBoard(false);
+    PrintStream getOut() {
+        return this.out;
     }
 
-    public void printFoggedBoard() {
-        this.printBoard(true);
+    Fleet getFleet() {
+        return this.fleet;
     }
 
     private void placeShips() {
-        this.aircraftCarrier = this.placeShip("Aircraft Carrier", 5);
-        this.battleship = this.placeShip("Battleship", 4);
-        this.submarine = this.placeShip("Submarine", 3);
-        this.cruiser = this.placeShip("Cruiser", 3);
-        this.destroyer = this.placeShip("Destroyer", 2);
+        for (int index = 0; index < this.rules.shipLengths.length; index++) {
+            this.placeShip(this.rules.shipNames[index], this.rules.shipLengths[index]);
+        }
     }
 
-    private Ship placeShip(final String name, final int cells) {
-        System.out.printf("%nEnter the coordinates of the %s (%d cells):%n", name, cells);
+    private void placeShip(final String name, final int cells) {
+        this.out.printf("%nEnter the coordinates of the %s (%d cells):%n", name, cells);
         final int[][] coordinates = this.getValidCoordinates(cells);
         final int[][] listOfCoordinates = this.getListOfCoordinates(coordinates[0], coordinates[1]);
-        this.putShipIntoBoard(listOfCoordinates);
-        System.out.println();
+        final int[] shipCells = new int[listOfCoordinates.length];
+        for (int index = 0; index < shipCells.length; index++) {
+            shipCells[index] = listOfCoordinates[index][0] * this.size + listOfCoordinates[index][1];
+        }
+        this.fleet.addShip(new Ship(cells), shipCells);
+        this.out.println();
         this.printBoard();
-        return new Ship(cells, listOfCoordinates);
     }
 
     private int[][] getValidCoordinates(final int length) {
@@ -200,7 +791,7 @@ final class Player {
         boolean areValid = false;
 
         while (!areValid) {
-            final String[] stringCoordinates = scanner.nextLine().split(" ");
+            final String[] stringCoordinates = this.scanner.nextLine().split(" ");
             if (stringCoordinates.length != 2) {
                 this.printErrorMessage("Wrong input");
                 continue;
@@ -212,10 +803,10 @@ final class Player {
                 continue;
             }
 
-            final int startRow = Helpers.charToIndex(start.charAt(0));
-            final int endRow = Helpers.charToIndex(end.charAt(0));
-            final int startColumn = Integer.parseInt(start.substring(1));
-            final int endColumn = Integer.parseInt(end.substring(1));
+            final int startRow = this.getRow(start);
+            final int endRow = this.getRow(end);
+            final int startColumn = this.getColumn(start);
+            final int endColumn = this.getColumn(end);
 
             if (startRow != endRow && startColumn != endColumn) {
                 this.printErrorMessage("Wrong ship location");
@@ -230,23 +821,23 @@ final class Player {
 
             boolean isOccupied = false;
             if (startRow == endRow) {
-                for (int index = 0; index < this.board[startRow].length; index++) {
+                for (int index = 0; index < this.size; index++) {
                     if (index + 1 < Math.min(startColumn, endColumn) || index + 1 > Math.max(startColumn, endColumn)) {
                         continue;
                     }
 
-                    if (this.board[startRow][index] != '~') {
+                    if (this.fleet.isShipAt(startRow * this.size + index)) {
                         isOccupied = true;
                         break;
                     }
                 }
             } else {
-                for (int index = 0; index < this.board.length; index++) {
+                for (int index = 0; index < this.size; index++) {
                     if (index < Math.min(startRow, endRow) || index > Math.max(startRow, endRow)) {
                         continue;
                     }
 
-                    if (this.board[index][startColumn - 1] != '~') {
+                    if (this.fleet.isShipAt(index * this.size + startColumn - 1)) {
                         isOccupied = true;
                         break;
                     }
@@ -259,14 +850,14 @@ final class Player {
             }
 
             final int startCheckingRow = Math.max(Math.min(startRow, endRow) - 1, 0);
-            final int endCheckingRow = Math.min(Math.max(startRow, endRow) + 1, 9);
+            final int endCheckingRow = Math.min(Math.max(startRow, endRow) + 1, this.size - 1);
             final int startCheckingColumn = Math.max(Math.min(startColumn, endColumn) - 2, 0);
-            final int endCheckingColumn = Math.min(Math.max(startColumn, endColumn), 9);
+            final int endCheckingColumn = Math.min(Math.max(startColumn, endColumn), this.size - 1);
             boolean isTooClose = false;
 
             for (int i = startCheckingRow; i < endCheckingRow + 1 && !isTooClose; i++) {
                 for (int j = startCheckingColumn; j < endCheckingColumn + 1; j++) {
-                    if (this.board[i][j] != '~') {
+                    if (this.fleet.isShipAt(i * this.size + j)) {
                         isTooClose = true;
                         break;
                     }
@@ -289,35 +880,59 @@ final class Player {
     }
 
     private void printErrorMessage(final String message) {
-        System.out.printf("Error! %s! Try again:%n", message);
+        this.out.printf("Error! %s! Try again:%n", message);
+    }
+
+    // Reads coordinates until they are on the board and returns their cell
+    public int readShot() {
+        String target = this.scanner.nextLine();
+
+        while (this.isCoordinateInvalid(target)) {
+            target = this.scanner.nextLine();
+        }
+
+        return this.getRow(target) * this.size + this.getColumn(target) - 1;
     }
 
     public boolean isCoordinateInvalid(final String coordinate) {
-        if (coordinate.length() > 3 || coordinate.length() < 2) {
+        final int letters = Helpers.getRowLabel(this.size - 1).length();
+        if (coordinate.length() > letters + String.valueOf(this.size).length() || coordinate.length() < 2) {
             this.printErrorMessage("Wrong coordinates format");
             return true;
         }
 
-        final int row = Helpers.charToIndex(coordinate.charAt(0));
-        if (row > 9 || row < 0 ) {
-            this.printErrorMessage("First coordinates character should be A-J");
+        final int row = this.getRow(coordinate);
+        if (row >= this.size || row < 0 ) {
+            this.printErrorMessage(letters == 1
+                    ? "First coordinates character should be A-" + Helpers.getRowLabel(this.size - 1)
+                    : "Row should be from A to " + Helpers.getRowLabel(this.size - 1));
             return true;
         }
 
         try {
-            final int column = Integer.parseInt(coordinate.substring(1));
+            final int column = this.getColumn(coordinate);
 
-            if (column > 10 || column < 1 ) {
+            if (column > this.size || column < 1 ) {
                 throw new NumberFormatException();
             }
         } catch(NumberFormatException numberFormatException) {
-            this.printErrorMessage("Second part of coordinates should be a number from 1 to 10");
+            this.printErrorMessage("Second part of coordinates should be a number from 1 to " + this.size);
             return true;
         }
 
         return false;
     }
 
+    // Row index of a coordinate such as B7 or AB12, -1 when it does not start with a row label
+    public int getRow(final String coordinate) {
+        return Helpers.parseRowLabel(coordinate, Helpers.getRowLabel(this.size - 1).length());
+    }
+
+    // Column number, from 1, of a coordinate whose row label is valid
+    public int getColumn(final String coordinate) {
+        return Integer.parseInt(coordinate.substring(Helpers.getRowLabel(this.getRow(coordinate)).length()));
+    }
+
     private int[][] getListOfCoordinates(final int[] start, final int[] end) {
         final int[][] list;
 
@@ -347,50 +962,1974 @@ final class Player {
         return list;
     }
 
-    private void putShipIntoBoard(final int[][] coordinates) {
-        for (final int[] coordinate : coordinates) {
-            this.board[coordinate[0]][coordinate[1]] = 'O';
+    public ShotResult fire(final int row, final int column) {
+        return this.fleet.fire(row * this.size + column);
+    }
+
+    public boolean isEnd() {
+        return this.fleet.isDestroyed();
+    }
+}
+
+// Draws boards into one reusable byte buffer that goes out in a single write per frame, fogging the enemy's
+// ships through a lookup table. In ANSI mode a frame showing the same player's boards as the one before only
+// rewrites the cells that changed and clears whatever was printed below it. The text between frames scrolls
+// in a region below the boards, so they stay on the rows the cursor moves address.
+final class BoardRenderer {
+    // Larger boards are summed up rather than drawn
+    static final int MAX_PRINTED_SIZE = 26;
+    private static final byte[] CLEAR_SCREEN = "\033[H\033[2J".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLEAR_BELOW = "\033[J".getBytes(StandardCharsets.US_ASCII);
+    // Setting or resetting the scrolling region homes the cursor, hence the save and restore around a reset
+    private static final byte[] RESET_REGION = "\0337\033[r\0338".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VISIBLE = new byte[128];
+    private static final byte[] FOGGED = new byte[128];
+
+    static {
+        for (int symbol = 0; symbol < VISIBLE.length; symbol++) {
+            VISIBLE[symbol] = (byte) symbol;
+            FOGGED[symbol] = (byte) symbol;
         }
+        FOGGED['O'] = '~';
     }
 
-    public char getCell(final int row, final int column) {
-        return this.board[row][column];
+    private final PrintStream out;
+    private final boolean ansi;
+    private byte[] buffer = new byte[4096];
+    private int length;
+    // What the last ANSI frame left on screen, fogged board first, and whose turn it showed
+    private byte[] screen;
+    private Player viewer;
+    // First row of the scrolling region below the boards, 0 while the whole screen scrolls
+    private int textRow;
+
+    BoardRenderer(final PrintStream out, final boolean ansi) {
+        this.out = out;
+        this.ansi = ansi;
     }
 
-    public void setCell(final int row, final int column, final char symbol) {
-        this.board[row][column] = symbol;
+    void printBoard(final Fleet fleet, final int size) {
+        this.releaseRegion();
+        this.appendBoard(fleet, size, VISIBLE);
+        this.flush();
+        this.viewer = null;
     }
 
-    public boolean isEnd() {
-        return this.aircraftCarrier.isSunk() && this.battleship.isSunk() && this.submarine.isSunk() && this.cruiser.isSunk() && this.destroyer.isSunk();
+    // Clears the screen in ANSI mode, so the next player does not see the boards left on it
+    void clear() {
+        if (this.ansi) {
+            this.releaseRegion();
+            this.append(CLEAR_SCREEN);
+            this.flush();
+            this.viewer = null;
+        }
     }
 
-    public String parseHit(final int row, final int column) {
-        String message = "You hit a ship!";
-        final int[] coordinate = new int[] {row, column};
+    // Gives the terminal its whole screen back
+    void close() {
+        this.releaseRegion();
+        this.flush();
+    }
+
+    // The enemy's board fogged above the viewer's own
+    void printFrame(final Player viewer, final Fleet enemy, final Fleet own, final int size) {
+        if (size > MAX_PRINTED_SIZE || !this.ansi) {
+            this.releaseRegion();
+            this.appendBoard(enemy, size, FOGGED);
+            this.appendSeparator(size);
+            this.appendBoard(own, size, VISIBLE);
+        } else if (viewer != this.viewer || this.screen == null || this.screen.length != 2 * size * size) {
+            this.releaseRegion();
+            this.append(CLEAR_SCREEN);
+            this.appendBoard(enemy, size, FOGGED);
+            this.appendSeparator(size);
+            this.appendBoard(own, size, VISIBLE);
+            this.textRow = 2 * size + 4;
+            this.appendScrollRegion(this.textRow);
+            this.appendCursor(this.textRow, 1);
+            this.screen = new byte[2 * size * size];
+            this.updateScreen(enemy, size, FOGGED, 0, 2, false);
+            this.updateScreen(own, size, VISIBLE, size * size, size + 4, false);
+            this.viewer = viewer;
+        } else {
+            this.updateScreen(enemy, size, FOGGED, 0, 2, true);
+            this.updateScreen(own, size, VISIBLE, size * size, size + 4, true);
+            this.appendCursor(this.textRow, 1);
+            this.append(CLEAR_BELOW);
+        }
 
-        final Ship[] ships = new Ship[] {this.aircraftCarrier, this.battleship, this.submarine, this.cruiser, this.destroyer};
+        this.flush();
+    }
 
-        for (final Ship ship : ships) {
-            if (ship.isThere(coordinate)) {
-                ship.markShot();
+    private void releaseRegion() {
+        if (this.textRow != 0) {
+            this.append(RESET_REGION);
+            this.textRow = 0;
+        }
+    }
 
-                if (ship.isSunk()) {
-                    message = "You sank a ship!";
+    // Records the board's symbols from screen[offset] on, with cursor moves to those that changed when redrawing
+    private void updateScreen(final Fleet fleet, final int size, final byte[] table, final int offset, final int firstRow,
+                              final boolean redraw) {
+        for (int row = 0, cell = 0; row < size; row++) {
+            for (int column = 0; column < size; column++, cell++) {
+                final byte symbol = table[fleet.getSymbol(cell)];
+
+                if (this.screen[offset + cell] != symbol) {
+                    this.screen[offset + cell] = symbol;
+                    if (redraw) {
+                        this.appendCursor(firstRow + row, 3 + 2 * column);
+                        this.append(symbol);
+                    }
                 }
             }
         }
+    }
+
+    private void appendBoard(final Fleet fleet, final int size, final byte[] table) {
+        if (size > MAX_PRINTED_SIZE) {
+            this.appendAscii(String.format("%dx%d board: %d shots taken, %d hits, %d of %d ships afloat%n", size, size,
+                    fleet.getShots(), fleet.getHits(), fleet.getRemainingShips(), fleet.getShipCount()));
+            return;
+        }
+
+        this.append((byte) ' ');
+        for (int column = 1; column <= size; column++) {
+            this.append((byte) ' ');
+            this.appendNumber(column);
+        }
+        this.appendNewLine();
+
+        for (int row = 0, cell = 0; row < size; row++) {
+            this.append((byte) ('A' + row));
+            for (int column = 0; column < size; column++, cell++) {
+                this.append((byte) ' ');
+                this.append(table[fleet.getSymbol(cell)]);
+            }
+            this.appendNewLine();
+        }
+    }
 
-        return message;
+    private void appendSeparator(final int size) {
+        final int dashes = size > MAX_PRINTED_SIZE ? 21 : 2 * size + 1;
+        for (int dash = 0; dash < dashes; dash++) {
+            this.append((byte) '-');
+        }
+        this.appendNewLine();
     }
-}
 
-final class Helpers {
-    public static int charToIndex(final char character) {
-        return character - 65;
+    // From the row down to the bottom of the screen
+    private void appendScrollRegion(final int row) {
+        this.append((byte) 27);
+        this.append((byte) '[');
+        this.appendNumber(row);
+        this.append((byte) 'r');
+    }
+
+    private void appendCursor(final int row, final int column) {
+        this.append((byte) 27);
+        this.append((byte) '[');
+        this.appendNumber(row);
+        this.append((byte) ';');
+        this.appendNumber(column);
+        this.append((byte) 'H');
+    }
+
+    private void appendNumber(final int number) {
+        if (number >= 10) {
+            this.appendNumber(number / 10);
+        }
+        this.append((byte) ('0' + number % 10));
+    }
+
+    private void appendNewLine() {
+        this.appendAscii(System.lineSeparator());
+    }
+
+    private void appendAscii(final String text) {
+        for (int index = 0; index < text.length(); index++) {
+            this.append((byte) text.charAt(index));
+        }
+    }
+
+    private void append(final byte[] bytes) {
+        for (final byte value : bytes) {
+            this.append(value);
+        }
+    }
+
+    private void append(final byte value) {
+        if (this.length == this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, 2 * this.buffer.length);
+        }
+        this.buffer[this.length++] = value;
     }
 
-    public static char indexToChar(final int index) {
-        return (char) (index + 65);
+    private void flush() {
+        this.out.write(this.buffer, 0, this.length);
+        this.out.flush();
+        this.length = 0;
+    }
+}
+
+// Every way to lay a ship of one length on a square board, horizontal ones first, numbered by their first cell,
+// then vertical ones. On boards of up to Fleet.DENSE_CELLS cells each comes as a mask of its cells and a halo
+// mask of the cells around it, which no other ship may touch. Larger boards check cell by cell instead.
+final class ShipPlacements {
+    private static final Map<Long, ShipPlacements> PLACEMENTS = new ConcurrentHashMap<>();
+
+    final int size;
+    final int length;
+    final int count;
+    final int words;
+    final long[][] masks;
+    final long[][] halos;
+    // The cell and halo masks together, placement after placement, words long each
+    final long[] zones;
+    final long[] flatMasks;
+    private final int perDirection;
+
+    private ShipPlacements(final int size, final int length) {
+        final int words = (size * size + 63) >>> 6;
+        this.size = size;
+        this.length = length;
+        this.words = words;
+        this.perDirection = size * (size - length + 1);
+        this.count = length == 1 ? this.perDirection : 2 * this.perDirection;
+
+        if (size * size > Fleet.DENSE_CELLS) {
+            this.masks = null;
+            this.halos = null;
+            this.zones = null;
+            this.flatMasks = null;
+            return;
+        }
+
+        this.masks = new long[this.count][words];
+        this.halos = new long[this.count][words];
+        this.zones = new long[this.count * words];
+        this.flatMasks = new long[this.count * words];
+
+        for (int placement = 0; placement < this.count; placement++) {
+            final int first = this.getFirstCell(placement);
+            final int row = first / size;
+            final int column = first % size;
+            final int lastRow = this.getStep(placement) == 1 ? row : row + length - 1;
+            final int lastColumn = this.getStep(placement) == 1 ? column + length - 1 : column;
+
+            for (int haloRow = Math.max(row - 1, 0); haloRow <= Math.min(lastRow + 1, size - 1); haloRow++) {
+                for (int haloColumn = Math.max(column - 1, 0); haloColumn <= Math.min(lastColumn + 1, size - 1); haloColumn++) {
+                    final int cell = haloRow * size + haloColumn;
+                    final boolean inside = haloRow >= row && haloRow <= lastRow && haloColumn >= column && haloColumn <= lastColumn;
+                    (inside ? this.masks : this.halos)[placement][cell >>> 6] |= 1L << cell;
+                }
+            }
+
+            for (int word = 0; word < words; word++) {
+                this.flatMasks[placement * words + word] = this.masks[placement][word];
+                this.zones[placement * words + word] = this.masks[placement][word] | this.halos[placement][word];
+            }
+        }
+    }
+
+    static ShipPlacements of(final int size, final int length) {
+        return PLACEMENTS.computeIfAbsent((long) size << 32 | length, key -> new ShipPlacements(size, length));
+    }
+
+    int getFirstCell(final int placement) {
+        if (placement < this.perDirection) {
+            final int columns = this.size - this.length + 1;
+            return placement / columns * this.size + placement % columns;
+        }
+
+        return placement - this.perDirection;
+    }
+
+    int getStep(final int placement) {
+        return placement < this.perDirection ? 1 : this.size;
+    }
+
+    boolean hasMasks() {
+        return this.masks != null;
+    }
+
+    // No cell of the placement is taken
+    boolean fits(final int placement, final CellTable taken) {
+        final int step = this.getStep(placement);
+
+        for (int index = 0, cell = this.getFirstCell(placement); index < this.length; index++, cell += step) {
+            if (taken.contains(cell)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Takes the placement's cells and the cells around them
+    void addZone(final int placement, final CellTable taken) {
+        final int first = this.getFirstCell(placement);
+        final int row = first / this.size;
+        final int column = first % this.size;
+        final int lastRow = this.getStep(placement) == 1 ? row : row + this.length - 1;
+        final int lastColumn = this.getStep(placement) == 1 ? column + this.length - 1 : column;
+
+        for (int zoneRow = Math.max(row - 1, 0); zoneRow <= Math.min(lastRow + 1, this.size - 1); zoneRow++) {
+            for (int zoneColumn = Math.max(column - 1, 0); zoneColumn <= Math.min(lastColumn + 1, this.size - 1); zoneColumn++) {
+                taken.put(zoneRow * this.size + zoneColumn, 0);
+            }
+        }
+    }
+}
+
+// Uniformly random legal fleets. Every ship takes a uniformly random placement, longest first, and the whole
+// fleet starts over as soon as one lands on or next to an earlier ship. Every legal fleet is then equally likely,
+// which placing each ship only where it still fits would not give. On small boards the two longest ships are
+// drawn together from a table of their legal pairs, which skips the most common reason to start over.
+final class FleetGenerator {
+    private static final long MAX_PAIR_CANDIDATES = 1 << 20;
+    private static final long MAX_ATTEMPTS = 10_000_000;
+
+    private final ShipPlacements[] ships;
+    // Ships are placed longest first, and order maps that back to their index in the fleet definition
+    private final int[] order;
+    private final SplittableRandom random;
+    private final long[] taken;
+    // Used instead of taken on boards without placement masks
+    private final CellTable takenCells = new CellTable();
+    // First placement times the second ship's placement count plus second placement, and the zones they cover
+    private final int[] pairs;
+    private final long[] pairZones;
+    private long attempts;
+    private long fleets;
+
+    FleetGenerator(final int size, final int[] shipLengths, final long seed) {
+        final Integer[] byLength = new Integer[shipLengths.length];
+        for (int ship = 0; ship < shipLengths.length; ship++) {
+            byLength[ship] = ship;
+        }
+        Arrays.sort(byLength, (first, second) -> shipLengths[second] - shipLengths[first]);
+
+        this.ships = new ShipPlacements[shipLengths.length];
+        this.order = new int[shipLengths.length];
+        for (int index = 0; index < byLength.length; index++) {
+            this.order[index] = byLength[index];
+            this.ships[index] = ShipPlacements.of(size, shipLengths[byLength[index]]);
+        }
+
+        this.random = new SplittableRandom(seed);
+        this.taken = new long[this.ships[0].hasMasks() ? (size * size + 63) >>> 6 : 0];
+
+        if (!this.ships[0].hasMasks() || this.ships.length < 2 || (long) this.ships[0].count * this.ships[1].count > MAX_PAIR_CANDIDATES) {
+            this.pairs = null;
+            this.pairZones = null;
+            return;
+        }
+
+        final ShipPlacements first = this.ships[0];
+        final ShipPlacements second = this.ships[1];
+        final int words = this.taken.length;
+        final int[] pairs = new int[first.count * second.count];
+        final long[] pairZones = new long[pairs.length * words];
+        int count = 0;
+
+        for (int firstPlacement = 0; firstPlacement < first.count; firstPlacement++) {
+            for (int secondPlacement = 0; secondPlacement < second.count; secondPlacement++) {
+                long overlap = 0;
+                for (int word = 0; word < words; word++) {
+                    overlap |= second.flatMasks[secondPlacement * words + word] & first.zones[firstPlacement * words + word];
+                }
+
+                if (overlap != 0) {
+                    continue;
+                }
+
+                pairs[count] = firstPlacement * second.count + secondPlacement;
+                for (int word = 0; word < words; word++) {
+                    pairZones[count * words + word] = first.zones[firstPlacement * words + word] | second.zones[secondPlacement * words + word];
+                }
+                count++;
+            }
+        }
+
+        this.pairs = Arrays.copyOf(pairs, count);
+        this.pairZones = Arrays.copyOf(pairZones, count * words);
+    }
+
+    ShipPlacements getPlacements(final int ship) {
+        for (int index = 0; index < this.order.length; index++) {
+            if (this.order[index] == ship) {
+                return this.ships[index];
+            }
+        }
+
+        throw new IllegalArgumentException("No ship " + ship);
+    }
+
+    // Fills chosen with a placement for every ship, indexed as in the fleet definition
+    void next(final int[] chosen) {
+        if (!this.ships[0].hasMasks()) {
+            this.nextSparse(chosen);
+            return;
+        }
+
+        final long[] taken = this.taken;
+        final int words = taken.length;
+        final ShipPlacements[] ships = this.ships;
+        final SplittableRandom random = this.random;
+        final int[] pairs = this.pairs;
+        long attempts = 0;
+        int index;
+
+        do {
+            attempts++;
+            index = 0;
+
+            if (pairs == null) {
+                Arrays.fill(taken, 0);
+            } else {
+                final int pair = random.nextInt(pairs.length);
+                System.arraycopy(this.pairZones, pair * words, taken, 0, words);
+                chosen[this.order[0]] = pairs[pair] / ships[1].count;
+                chosen[this.order[1]] = pairs[pair] % ships[1].count;
+                index = 2;
+            }
+
+            for (; index < ships.length; index++) {
+                final ShipPlacements placements = ships[index];
+                final int placement = random.nextInt(placements.count);
+                final long[] masks = placements.flatMasks;
+                final int offset = placement * words;
+                long overlap = 0;
+
+                for (int word = 0; word < words; word++) {
+                    overlap |= masks[offset + word] & taken[word];
+                }
+
+                if (overlap != 0) {
+                    break;
+                }
+
+                final long[] zones = placements.zones;
+                for (int word = 0; word < words; word++) {
+                    taken[word] |= zones[offset + word];
+                }
+                chosen[this.order[index]] = placement;
+            }
+
+            if (index < ships.length && attempts == MAX_ATTEMPTS) {
+                throw new IllegalStateException("The fleet does not fit on the board");
+            }
+        } while (index < ships.length);
+
+        this.attempts += attempts;
+        this.fleets++;
+    }
+
+    private void nextSparse(final int[] chosen) {
+        final CellTable taken = this.takenCells;
+        long attempts = 0;
+        int index;
+
+        do {
+            attempts++;
+            taken.clear();
+
+            for (index = 0; index < this.ships.length; index++) {
+                final ShipPlacements placements = this.ships[index];
+                final int placement = this.random.nextInt(placements.count);
+
+                if (!placements.fits(placement, taken)) {
+                    break;
+                }
+
+                placements.addZone(placement, taken);
+                chosen[this.order[index]] = placement;
+            }
+
+            if (index < this.ships.length && attempts == MAX_ATTEMPTS) {
+                throw new IllegalStateException("The fleet does not fit on the board");
+            }
+        } while (index < this.ships.length);
+
+        this.attempts += attempts;
+        this.fleets++;
+    }
+
+    // Fleets started per fleet finished
+    double getAttemptsPerFleet() {
+        return this.fleets == 0 ? 0 : (double) this.attempts / this.fleets;
+    }
+}
+
+// Fires where the most placements of the ships still afloat fit what is known. Checking a placement
+// against the misses and hits is a few word operations on its ShipPlacements masks. Ships never touch,
+// which tells a lot: the cells diagonal to a hit and all cells around a sunk ship are water. While a ship
+// is hit but not sunk, only placements covering its hits count, weighted by how many they cover.
+final class DensityTargeting implements FiringStrategy {
+    private static final int HIT_WEIGHT = 16;
+
+    private final int size;
+    private final int[] shipLengths;
+    private final int words;
+    private final Random random;
+    // Ships still afloat, counted by length
+    private final int[] remaining;
+    private final ShipPlacements[] placements;
+    // Misses, sunk ships and cells known to be water
+    private final long[] blocked;
+    // Hits on ships not sunk yet
+    private final long[] hits;
+    private final long[] shots;
+    // A placement's weight grows by HIT_WEIGHT for every hit it covers, and ships may be as long as the board
+    // is wide, which overflows any integer. Doubles stay exact for the usual fleets and keep the order beyond.
+    private final double[] density;
+    private int openHits;
+
+    DensityTargeting(final int size, final int[] shipLengths, final Random random) {
+        this.size = size;
+        this.shipLengths = shipLengths;
+        this.words = (size * size + 63) >>> 6;
+        this.random = random;
+        this.blocked = new long[this.words];
+        this.hits = new long[this.words];
+        this.shots = new long[this.words];
+        this.density = new double[size * size];
+
+        int longest = 0;
+        for (final int length : shipLengths) {
+            longest = Math.max(longest, length);
+        }
+
+        this.remaining = new int[longest + 1];
+        this.placements = new ShipPlacements[longest + 1];
+        for (final int length : shipLengths) {
+            if (this.remaining[length]++ == 0) {
+                this.placements[length] = ShipPlacements.of(size, length);
+                if (!this.placements[length].hasMasks()) {
+                    throw new IllegalArgumentException("Density targeting needs a board of up to " + Fleet.DENSE_CELLS + " cells");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(this.blocked, 0);
+        Arrays.fill(this.hits, 0);
+        Arrays.fill(this.shots, 0);
+        Arrays.fill(this.remaining, 0);
+        for (final int length : this.shipLengths) {
+            this.remaining[length]++;
+        }
+        this.openHits = 0;
+    }
+
+    @Override
+    public int nextShot() {
+        Arrays.fill(this.density, 0);
+
+        for (int length = 1; length < this.remaining.length; length++) {
+            if (this.remaining[length] > 0) {
+                this.addDensity(length);
+            }
+        }
+
+        int best = -1;
+        int ties = 0;
+        for (int cell = 0; cell < this.density.length; cell++) {
+            if ((this.shots[cell >>> 6] & 1L << cell) != 0) {
+                continue;
+            }
+
+            if (best == -1 || this.density[cell] > this.density[best]) {
+                best = cell;
+                ties = 1;
+            } else if (this.density[cell] == this.density[best] && this.random.nextInt(++ties) == 0) {
+                best = cell;
+            }
+        }
+
+        return best;
+    }
+
+    private void addDensity(final int length) {
+        final ShipPlacements placements = this.placements[length];
+
+        for (int placement = 0; placement < placements.count; placement++) {
+            final long[] mask = placements.masks[placement];
+            final long[] halo = placements.halos[placement];
+            int covered = 0;
+            boolean legal = true;
+
+            for (int word = 0; word < this.words && legal; word++) {
+                legal = (mask[word] & this.blocked[word]) == 0 && (halo[word] & this.hits[word]) == 0;
+                covered += Long.bitCount(mask[word] & this.hits[word]);
+            }
+
+            if (!legal || this.openHits > 0 && covered == 0) {
+                continue;
+            }
+
+            double weight = this.remaining[length];
+            for (int hit = 0; hit < covered; hit++) {
+                weight *= HIT_WEIGHT;
+            }
+
+            final int step = placements.getStep(placement);
+            for (int index = 0, cell = placements.getFirstCell(placement); index < length; index++, cell += step) {
+                this.density[cell] += weight;
+            }
+        }
+    }
+
+    @Override
+    public void record(final int cell, final ShotResult result) {
+        this.shots[cell >>> 6] |= 1L << cell;
+
+        switch (result) {
+            case MISS:
+                this.blocked[cell >>> 6] |= 1L << cell;
+                break;
+            case HIT:
+                this.hits[cell >>> 6] |= 1L << cell;
+                this.openHits++;
+                this.blockDiagonals(cell);
+                break;
+            case SUNK:
+                this.hits[cell >>> 6] |= 1L << cell;
+                this.openHits++;
+                this.sink(cell);
+                break;
+            case REPEATED:
+            default:
+                break;
+        }
+    }
+
+    private void blockDiagonals(final int cell) {
+        final int row = cell / this.size;
+        final int column = cell % this.size;
+
+        for (int rowStep = -1; rowStep <= 1; rowStep += 2) {
+            for (int columnStep = -1; columnStep <= 1; columnStep += 2) {
+                final int diagonalRow = row + rowStep;
+                final int diagonalColumn = column + columnStep;
+
+                if (diagonalRow >= 0 && diagonalRow < this.size && diagonalColumn >= 0 && diagonalColumn < this.size) {
+                    final int diagonal = diagonalRow * this.size + diagonalColumn;
+                    this.blocked[diagonal >>> 6] |= 1L << diagonal;
+                }
+            }
+        }
+    }
+
+    // Ships never touch, so the hits in line with the sinking shot are exactly the sunk ship
+    private void sink(final int cell) {
+        final int row = cell / this.size;
+        final int column = cell % this.size;
+        int first = column;
+        int last = column;
+        int step = 1;
+
+        while (first > 0 && this.isHit(row * this.size + first - 1)) {
+            first--;
+        }
+        while (last < this.size - 1 && this.isHit(row * this.size + last + 1)) {
+            last++;
+        }
+
+        if (first == last) {
+            first = row;
+            last = row;
+            step = this.size;
+
+            while (first > 0 && this.isHit((first - 1) * this.size + column)) {
+                first--;
+            }
+            while (last < this.size - 1 && this.isHit((last + 1) * this.size + column)) {
+                last++;
+            }
+        }
+
+        final int start = step == 1 ? row * this.size + first : first * this.size + column;
+        final int length = last - first + 1;
+        final int lastRow = step == 1 ? row : last;
+        final int lastColumn = step == 1 ? last : column;
+
+        for (int haloRow = Math.max(start / this.size - 1, 0); haloRow <= Math.min(lastRow + 1, this.size - 1); haloRow++) {
+            for (int haloColumn = Math.max(start % this.size - 1, 0); haloColumn <= Math.min(lastColumn + 1, this.size - 1); haloColumn++) {
+                final int halo = haloRow * this.size + haloColumn;
+                this.blocked[halo >>> 6] |= 1L << halo;
+            }
+        }
+
+        for (int index = 0; index < length; index++) {
+            final int shipCell = start + index * step;
+            this.hits[shipCell >>> 6] &= ~(1L << shipCell);
+        }
+
+        this.openHits -= length;
+        if (length < this.remaining.length && this.remaining[length] > 0) {
+            this.remaining[length]--;
+        }
+    }
+
+    private boolean isHit(final int cell) {
+        return (this.hits[cell >>> 6] & 1L << cell) != 0;
+    }
+}
+
+// Decides where to fire next from the results of earlier shots. Strategies keep their own state and are reset
+// before every game, so one instance can play any number of them.
+interface FiringStrategy {
+    String[] NAMES = {"random", "hunt-target", "density"};
+
+    // Throws if there is no strategy by that name or it cannot play by these rules
+    static void check(final String name, final Rules rules) {
+        if (!Arrays.asList(NAMES).contains(name)) {
+            throw new IllegalArgumentException("Unknown strategy " + name + ", expected one of " + String.join(", ", NAMES));
+        }
+
+        if ("density".equals(name) && !rules.isDense()) {
+            throw new IllegalArgumentException("Density targeting needs a board of up to " + Fleet.DENSE_CELLS + " cells");
+        }
+    }
+
+    static FiringStrategy create(final String name, final Rules rules, final Random random) {
+        check(name, rules);
+
+        switch (name) {
+            case "random":
+                return new RandomFiring(rules.size, random, false);
+            case "hunt-target":
+                return new HuntTargetFiring(rules.size, random);
+            case "density":
+                return new DensityTargeting(rules.size, rules.shipLengths, random);
+            default:
+                throw new IllegalStateException("Unhandled strategy " + name);
+        }
+    }
+
+    int nextShot();
+
+    void record(int cell, ShotResult result);
+
+    void reset();
+}
+
+// Fires at the cells in a random order. With checkerboard set, cells of one colour come first: every ship
+// longer than one cell covers both colours, so it is found without trying the other half.
+final class RandomFiring implements FiringStrategy {
+    private final int cells;
+    private final int size;
+    private final Random random;
+    private final boolean checkerboard;
+    private final int[] order;
+    private int next;
+
+    RandomFiring(final int size, final Random random, final boolean checkerboard) {
+        this.cells = size * size;
+        this.size = size;
+        this.random = random;
+        this.checkerboard = checkerboard;
+        this.order = new int[this.cells];
+    }
+
+    @Override
+    public void reset() {
+        int front = 0;
+        int back = this.cells;
+
+        for (int cell = 0; cell < this.cells; cell++) {
+            if (!this.checkerboard || (cell / this.size + cell % this.size) % 2 == 0) {
+                this.order[front++] = cell;
+            } else {
+                this.order[--back] = cell;
+            }
+        }
+
+        this.shuffle(0, front);
+        this.shuffle(front, this.cells);
+        this.next = 0;
+    }
+
+    private void shuffle(final int from, final int to) {
+        for (int index = to - 1; index > from; index--) {
+            final int other = from + this.random.nextInt(index - from + 1);
+            final int cell = this.order[index];
+            this.order[index] = this.order[other];
+            this.order[other] = cell;
+        }
+    }
+
+    // The next cell in the order that has not been fired at, the caller marking them through skip
+    int peek() {
+        return this.next < this.cells ? this.order[this.next] : -1;
+    }
+
+    void skip() {
+        this.next++;
+    }
+
+    @Override
+    public int nextShot() {
+        return this.order[this.next++];
+    }
+
+    @Override
+    public void record(final int cell, final ShotResult result) {
+    }
+}
+
+// Hunts on a random checkerboard order and, after a hit, works through the cells next to it until the ship
+// sinks. Ships never touch, so once one sinks nothing left on the list can be a ship and it is dropped.
+final class HuntTargetFiring implements FiringStrategy {
+    private final int size;
+    private final RandomFiring hunt;
+    private final long[] shots;
+    private final int[] targets;
+    private int targetCount;
+
+    HuntTargetFiring(final int size, final Random random) {
+        this.size = size;
+        this.hunt = new RandomFiring(size, random, true);
+        this.shots = new long[(size * size + 63) >>> 6];
+        this.targets = new int[size * size];
+    }
+
+    @Override
+    public void reset() {
+        this.hunt.reset();
+        Arrays.fill(this.shots, 0);
+        this.targetCount = 0;
+    }
+
+    @Override
+    public int nextShot() {
+        while (this.targetCount > 0) {
+            final int target = this.targets[--this.targetCount];
+            if (!this.isShot(target)) {
+                return target;
+            }
+        }
+
+        while (this.isShot(this.hunt.peek())) {
+            this.hunt.skip();
+        }
+
+        return this.hunt.nextShot();
+    }
+
+    private boolean isShot(final int cell) {
+        return (this.shots[cell >>> 6] & 1L << cell) != 0;
+    }
+
+    @Override
+    public void record(final int cell, final ShotResult result) {
+        this.shots[cell >>> 6] |= 1L << cell;
+
+        if (result == ShotResult.SUNK) {
+            this.targetCount = 0;
+        } else if (result == ShotResult.HIT) {
+            final int row = cell / this.size;
+            final int column = cell % this.size;
+
+            if (row > 0) {
+                this.addTarget(cell - this.size);
+            }
+            if (row < this.size - 1) {
+                this.addTarget(cell + this.size);
+            }
+            if (column > 0) {
+                this.addTarget(cell - 1);
+            }
+            if (column < this.size - 1) {
+                this.addTarget(cell + 1);
+            }
+        }
+    }
+
+    private void addTarget(final int cell) {
+        if (!this.isShot(cell)) {
+            this.targets[this.targetCount++] = cell;
+        }
+    }
+}
+
+// Plays firing strategies against each other with no console, every worker taking every n-th game of every
+// pairing. Neither side's shots affect the other's fleet, so each plays its own fleet to the end and the one
+// needing fewer shots wins, the side firing first taking ties; first shot alternates between games.
+final class Tournament {
+    private final Rules rules;
+    private final String[] strategies;
+    private final long gamesPerPairing;
+    private final int workers;
+    private final long seed;
+
+    Tournament(final Rules rules, final String[] strategies, final long gamesPerPairing, final int workers, final long seed) {
+        this.rules = rules;
+        this.strategies = strategies;
+        this.gamesPerPairing = gamesPerPairing;
+        this.workers = workers;
+        this.seed = seed;
+
+        for (final String strategy : strategies) {
+            FiringStrategy.check(strategy, rules);
+        }
+    }
+
+    void run() throws InterruptedException, ExecutionException {
+        System.out.printf("Board %dx%d, fleet %s, %d games per pairing, %d workers, seed %d%n", this.rules.size, this.rules.size,
+                Arrays.toString(this.rules.shipLengths), this.gamesPerPairing, this.workers, this.seed);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(this.workers);
+        final List<Future<long[][][]>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+
+        for (int worker = 0; worker < this.workers; worker++) {
+            final int index = worker;
+            futures.add(executor.submit(() -> this.playShare(index)));
+        }
+
+        // Wins of the row strategy against the column strategy, then shots each strategy needed, as a histogram
+        final int count = this.strategies.length;
+        final long[][] wins = new long[count][count];
+        final long[][] shots = new long[count][this.rules.getCells() + 1];
+        for (final Future<long[][][]> future : futures) {
+            final long[][][] share = future.get();
+
+            for (int first = 0; first < count; first++) {
+                for (int second = 0; second < count; second++) {
+                    wins[first][second] += share[0][first][second];
+                }
+
+                for (int shot = 0; shot < shots[first].length; shot++) {
+                    shots[first][shot] += share[1][first][shot];
+                }
+            }
+        }
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        this.printResults(wins, shots, seconds);
+    }
+
+    private long[][][] playShare(final int worker) {
+        final long workerSeed = this.seed + worker * 0x9E3779B97F4A7C15L;
+        final Random random = new Random(workerSeed);
+        final FleetGenerator generator = new FleetGenerator(this.rules.size, this.rules.shipLengths, workerSeed);
+        final int count = this.strategies.length;
+        // Two of each, for strategies playing themselves
+        final FiringStrategy[][] players = new FiringStrategy[2][count];
+        final long[][] wins = new long[count][count];
+        final long[][] shots = new long[count][this.rules.getCells() + 1];
+
+        for (int side = 0; side < 2; side++) {
+            for (int strategy = 0; strategy < count; strategy++) {
+                players[side][strategy] = FiringStrategy.create(this.strategies[strategy], this.rules, random);
+            }
+        }
+
+        for (int first = 0; first < count; first++) {
+            for (int second = 0; second < count; second++) {
+                for (long game = worker; game < this.gamesPerPairing; game += this.workers) {
+                    final int firstShots = this.playOut(players[0][first], Fleet.generate(this.rules, generator));
+                    final int secondShots = this.playOut(players[1][second], Fleet.generate(this.rules, generator));
+                    final boolean firstStarts = game % 2 == 0;
+
+                    if (firstStarts ? firstShots <= secondShots : firstShots < secondShots) {
+                        wins[first][second]++;
+                    }
+                    shots[first][firstShots]++;
+                    shots[second][secondShots]++;
+                }
+            }
+        }
+
+        return new long[][][] {wins, shots};
+    }
+
+    // Shots the strategy needs to sink the whole fleet
+    private int playOut(final FiringStrategy strategy, final Fleet fleet) {
+        strategy.reset();
+        int shots = 0;
+
+        while (!fleet.isDestroyed()) {
+            final int cell = strategy.nextShot();
+            final ShotResult result = fleet.fire(cell);
+
+            if (result == ShotResult.REPEATED || ++shots > this.rules.getCells()) {
+                throw new IllegalStateException("Strategy fired at the same cell twice");
+            }
+            strategy.record(cell, result);
+        }
+
+        return shots;
+    }
+
+    private void printResults(final long[][] wins, final long[][] shots, final double seconds) {
+        final int count = this.strategies.length;
+        System.out.println("Wins of the row strategy against the column strategy");
+        System.out.printf("%-13s", "");
+        for (final String strategy : this.strategies) {
+            System.out.printf("%-13s", strategy);
+        }
+        System.out.println();
+
+        for (int first = 0; first < count; first++) {
+            System.out.printf("%-13s", this.strategies[first]);
+            for (int second = 0; second < count; second++) {
+                System.out.printf("%-13s", String.format("%.1f%%", 100.0 * wins[first][second] / Math.max(this.gamesPerPairing, 1)));
+            }
+            System.out.println();
+        }
+
+        System.out.println("Shots to sink the fleet: mean, minimum, 10th, 50th and 90th percentile, maximum; overall win rate");
+        for (int strategy = 0; strategy < count; strategy++) {
+            long games = 0;
+            long total = 0;
+            for (int shot = 0; shot < shots[strategy].length; shot++) {
+                games += shots[strategy][shot];
+                total += (long) shot * shots[strategy][shot];
+            }
+
+            long won = 0;
+            for (int other = 0; other < count; other++) {
+                won += wins[strategy][other] + this.gamesPerPairing - wins[other][strategy];
+            }
+
+            System.out.printf("%-13s%6.1f %4d %4d %4d %4d %4d   %.1f%%%n", this.strategies[strategy], (double) total / Math.max(games, 1),
+                    getPercentile(shots[strategy], games, 0), getPercentile(shots[strategy], games, 0.1),
+                    getPercentile(shots[strategy], games, 0.5), getPercentile(shots[strategy], games, 0.9),
+                    getPercentile(shots[strategy], games, 1), 100.0 * won / Math.max(2 * count * this.gamesPerPairing, 1));
+        }
+
+        final long total = this.gamesPerPairing * count * count;
+        System.out.printf("Played %d games in %.2f s, %.0f games per second%n", total, seconds, total / seconds);
+    }
+
+    // Smallest shot count with at least this fraction of the games at or below it
+    private static int getPercentile(final long[] histogram, final long games, final double fraction) {
+        final long needed = Math.max(1, (long) Math.ceil(fraction * games));
+        long seen = 0;
+
+        for (int shot = 0; shot < histogram.length; shot++) {
+            seen += histogram[shot];
+            if (seen >= needed) {
+                return shot;
+            }
+        }
+
+        return histogram.length - 1;
+    }
+}
+
+// Plays matches between people connected over TCP, each connection on its own thread: virtual ones where the
+// runtime has them. Players place their ships, then wait in a queue for the matchmaker to pair them. The first
+// of each pair plays the whole match on its thread while the other waits for it to end, so a match's state
+// only changes on the one thread that runs it. Every shot goes to the match store, and a match whose player
+// drops out, or that was running when the server stopped, carries on once both players enter their match code.
+final class GameServer {
+    static final int DEFAULT_PORT = 4000;
+    private static final long REPORT_INTERVAL_SECONDS = 10;
+    // Players who send nothing for this long are dropped, as are those waiting this long for an opponent to come back
+    private static final int IDLE_TIMEOUT_MILLIS = 600_000;
+    // How often a player waiting in the queue is checked for having left
+    private static final long QUEUE_CHECK_MILLIS = 1000;
+    // Latency histogram buckets hold turns that took less than 2^bucket microseconds
+    private static final int LATENCY_BUCKETS = 40;
+
+    private final int port;
+    private final Rules rules;
+    private final MatchStore store;
+    private final BlockingQueue<Seat> waiting = new LinkedBlockingQueue<>();
+    // Matches waiting for their players to come back, by id
+    private final Map<Long, Match> suspended = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger activeMatches = new AtomicInteger();
+    private final AtomicLong totalMatches = new AtomicLong();
+    private final AtomicLong turns = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS);
+
+    GameServer(final int port, final Rules rules, final MatchStore store) {
+        this.port = port;
+        this.rules = rules;
+        this.store = store;
+
+        for (final MatchStore.SavedMatch saved : store.getSavedMatches()) {
+            this.suspended.put(saved.id, new Match(saved.id, saved.rules, saved.fleets, saved.nextShooter, store));
+        }
+    }
+
+    // A connected player, waiting for a match and then for it to end
+    private static final class Seat {
+        private final Player player;
+        private final PrintStream out;
+        private final Socket socket;
+        // Under the player's Scanner, so a byte read to check the connection can be pushed back
+        private final PushbackInputStream input;
+        private final CompletableFuture<Match> match = new CompletableFuture<>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        // Set before the match is handed over: whether this seat's thread plays the match
+        private boolean hosting;
+
+        Seat(final Player player, final PrintStream out, final Socket socket, final PushbackInputStream input) {
+            this.player = player;
+            this.out = out;
+            this.socket = socket;
+            this.input = input;
+        }
+
+        // Peeks at the stream for a millisecond to tell a client that left from a quiet one. Once the match is
+        // handed over under the same lock, the stream belongs to the thread playing it and is no longer touched.
+        synchronized boolean isConnected() {
+            if (this.match.isDone()) {
+                return true;
+            }
+
+            try {
+                if (this.input.available() > 0) {
+                    return true;
+                }
+
+                this.socket.setSoTimeout(1);
+                final int next = this.input.read();
+                if (next == -1) {
+                    return false;
+                }
+
+                this.input.unread(next);
+                return true;
+            } catch (SocketTimeoutException exception) {
+                return true;
+            } catch (IOException exception) {
+                return false;
+            } finally {
+                try {
+                    this.socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                } catch (SocketException exception) {
+                    // The socket is closed, the next read will say so
+                }
+            }
+        }
+
+        synchronized void hand(final Match match) {
+            this.match.complete(match);
+        }
+
+        // False when the seat already has a match, in which case the player is past waiting
+        synchronized boolean drop() {
+            return this.match.completeExceptionally(new IOException("The player left while waiting for an opponent"));
+        }
+    }
+
+    // Two fleets, whose turn it is and who sits at them. Seats are only touched holding the match's lock.
+    private static final class Match implements ShotListener {
+        private final long id;
+        private final Rules rules;
+        private final Fleet[] fleets;
+        private final MatchStore store;
+        private final Seat[] seats = new Seat[2];
+        private int nextShooter;
+
+        Match(final long id, final Rules rules, final Fleet[] fleets, final int nextShooter, final MatchStore store) {
+            this.id = id;
+            this.rules = rules;
+            this.fleets = fleets;
+            this.nextShooter = nextShooter;
+            this.store = store;
+        }
+
+        String getCode(final int seat) {
+            return Long.toString(this.id, 36) + "-" + (seat + 1);
+        }
+
+        @Override
+        public void shotFired(final int shooter, final int cell, final boolean gameOver) {
+            this.nextShooter = 1 - shooter;
+            this.store.recordShot(this.id, shooter, cell);
+
+            if (gameOver) {
+                this.store.recordEnd(this.id);
+            }
+        }
+    }
+
+    void run() throws IOException {
+        final ExecutorService sessions = newThreadPerTaskExecutor();
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::printMetrics, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        final Thread matchmaker = new Thread(this::matchPlayers, "matchmaker");
+        matchmaker.setDaemon(true);
+        matchmaker.start();
+
+        try (ServerSocket server = new ServerSocket(this.port, 1024, InetAddress.getLoopbackAddress())) {
+            System.out.printf("Listening on %s:%d, %d matches waiting for their players%n", server.getInetAddress().getHostAddress(),
+                    server.getLocalPort(), this.suspended.size());
+
+            while (true) {
+                final Socket socket = server.accept();
+                sessions.execute(() -> this.serve(socket));
+            }
+        } finally {
+            sessions.shutdownNow();
+            reporter.shutdownNow();
+            matchmaker.interrupt();
+        }
+    }
+
+    // Virtual threads arrived in Java 21; older runtimes get a plain thread per connection instead
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException exception) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Pairs the players in the order they came, checking both are still there first. The one who waited
+    // longer may have left in the meantime, in which case the newcomer waits for the next player instead.
+    // A seat is done before it is paired only when its player left, whether it sat in the queue or was held here.
+    private void matchPlayers() {
+        final SplittableRandom random = new SplittableRandom();
+
+        try {
+            Seat first = null;
+
+            while (true) {
+                final Seat second = this.waiting.take();
+
+                if (second.match.isDone()) {
+                    continue;
+                }
+
+                if (first == null || first.match.isDone()) {
+                    first = second;
+                    continue;
+                }
+
+                if (!second.isConnected()) {
+                    second.drop();
+                    continue;
+                }
+
+                if (!first.isConnected()) {
+                    first.drop();
+                    first = second;
+                    continue;
+                }
+
+                if (this.pair(first, second, random.nextLong() >>> 1)) {
+                    first = null;
+                } else if (first.match.isDone()) {
+                    first = second;
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Hands both seats the match holding both their locks, so neither player drops out half way through.
+    // False when one of them already has.
+    private boolean pair(final Seat first, final Seat second, final long id) {
+        synchronized (first) {
+            synchronized (second) {
+                if (first.match.isDone() || second.match.isDone()) {
+                    return false;
+                }
+
+                final Match match = new Match(id, this.rules, new Fleet[] {first.player.getFleet(), second.player.getFleet()}, 0,
+                        this.store);
+                match.seats[0] = first;
+                match.seats[1] = second;
+                this.store.recordStart(match.id, this.rules, match.fleets);
+                first.hosting = true;
+                // The host reads both streams, so the guest's must be handed over first
+                second.hand(match);
+                first.hand(match);
+                return true;
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        this.connections.incrementAndGet();
+
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            final PushbackInputStream input = new PushbackInputStream(socket.getInputStream());
+            final Scanner scanner = new Scanner(input, StandardCharsets.UTF_8);
+            final PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), true, StandardCharsets.UTF_8);
+
+            out.println("Enter your match code to carry on a game, or an empty line to start a new one:");
+            final String code = scanner.nextLine().trim();
+            final Seat seat;
+            final Match match;
+
+            if (code.isEmpty()) {
+                out.println("Place your ships on the game field\n");
+                seat = new Seat(new Player(scanner, out, this.rules, new BoardRenderer(out, false)), out, socket, input);
+                out.println("\nWaiting for an opponent...");
+                this.waiting.put(seat);
+                match = this.awaitMatch(seat);
+                if (match == null) {
+                    return;
+                }
+            } else {
+                seat = this.rejoin(code, scanner, out, socket, input);
+                if (seat == null) {
+                    out.println("Error! No game is waiting for that code");
+                    return;
+                }
+
+                out.println("Waiting for your opponent to come back...");
+                match = this.awaitOpponent(seat, code);
+                if (match == null) {
+                    out.println("Your opponent has not come back. Try again later with the same code");
+                    return;
+                }
+            }
+
+            if (seat.hosting) {
+                this.play(match);
+            } else {
+                seat.finished.await();
+            }
+        } catch (IOException | NoSuchElementException | ExecutionException exception) {
+            // The client went away, nothing left to do for this connection
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.connections.decrementAndGet();
+        }
+    }
+
+    // Null when the player leaves while queued. Their seat is taken out of the queue and dropped, which also
+    // tells the matchmaker to skip it if it already holds the seat. A match handed over first still counts.
+    private Match awaitMatch(final Seat seat) throws InterruptedException, ExecutionException {
+        while (true) {
+            try {
+                return seat.match.get(QUEUE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException exception) {
+                if (!seat.isConnected()) {
+                    this.waiting.remove(seat);
+                    if (seat.drop()) {
+                        return null;
+                    }
+                }
+            }
+        }
+    }
+
+    // Takes the seat the code names in a suspended match, null when there is no such seat free
+    private Seat rejoin(final String code, final Scanner scanner, final PrintStream out, final Socket socket,
+                        final PushbackInputStream input) {
+        final int separator = code.lastIndexOf('-');
+        final long id;
+        final int index;
+
+        try {
+            id = Long.parseLong(code.substring(0, Math.max(separator, 0)), 36);
+            index = Integer.parseInt(code.substring(separator + 1)) - 1;
+        } catch (NumberFormatException exception) {
+            return null;
+        }
+
+        final Match match = this.suspended.get(id);
+        if (match == null || index < 0 || index > 1) {
+            return null;
+        }
+
+        synchronized (match) {
+            if (match.seats[index] != null || this.suspended.get(id) != match) {
+                return null;
+            }
+
+            final Seat seat = new Seat(new Player(scanner, out, match.rules, new BoardRenderer(out, false), match.fleets[index]), out,
+                    socket, input);
+            match.seats[index] = seat;
+            final Seat other = match.seats[1 - index];
+
+            if (other != null) {
+                this.suspended.remove(id);
+                seat.hosting = true;
+                seat.match.complete(match);
+                other.match.complete(match);
+            }
+
+            return seat;
+        }
+    }
+
+    // Null when the other player does not come back in time, leaving the seat free again
+    private Match awaitOpponent(final Seat seat, final String code) throws InterruptedException, ExecutionException {
+        try {
+            return seat.match.get(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException exception) {
+            final Match match = this.suspended.get(Long.parseLong(code.substring(0, code.lastIndexOf('-')), 36));
+
+            if (match != null) {
+                synchronized (match) {
+                    if (!seat.match.isDone()) {
+                        match.seats[match.seats[0] == seat ? 0 : 1] = null;
+                        return null;
+                    }
+                }
+            }
+
+            return seat.match.get();
+        }
+    }
+
+    private void play(final Match match) {
+        this.activeMatches.incrementAndGet();
+        this.totalMatches.incrementAndGet();
+        final Seat host = match.seats[0].hosting ? match.seats[0] : match.seats[1];
+        final Seat guest = host == match.seats[0] ? match.seats[1] : match.seats[0];
+
+        try {
+            for (int index = 0; index < 2; index++) {
+                match.seats[index].out.printf("%nThe game starts! Your match code is %s, enter it to carry on if you lose the connection.%n",
+                        match.getCode(index));
+            }
+            new Game(match.rules, match.seats[0].player, match.seats[1].player, match.nextShooter, this::recordTurn, match);
+        } catch (NoSuchElementException exception) {
+            synchronized (match) {
+                match.seats[0] = null;
+                match.seats[1] = null;
+                this.suspended.put(match.id, match);
+            }
+
+            host.out.println("\nThe game is paused, a player has left. Reconnect with your match code to carry on.");
+            guest.out.println("\nThe game is paused, a player has left. Reconnect with your match code to carry on.");
+        } finally {
+            this.activeMatches.decrementAndGet();
+            guest.finished.countDown();
+        }
+    }
+
+    private void recordTurn(final long nanos) {
+        this.turns.incrementAndGet();
+        this.latencyNanos.addAndGet(nanos);
+        this.maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+        this.latencyHistogram.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(nanos / 1000), LATENCY_BUCKETS - 1));
+    }
+
+    private void printMetrics() {
+        final long count = this.turns.get();
+        System.out.printf("Connections: %d, waiting: %d; matches: %d active, %d total, %d suspended; turns: %d, latency mean %.3f ms, p50 < %s, p99 < %s, max %.3f ms%n",
+                this.connections.get(), this.waiting.size(), this.activeMatches.get(), this.totalMatches.get(), this.suspended.size(), count,
+                count == 0 ? 0 : this.latencyNanos.get() / 1e6 / count,
+                this.getLatencyPercentile(count, 0.5), this.getLatencyPercentile(count, 0.99), this.maxLatencyNanos.get() / 1e6);
+    }
+
+    private String getLatencyPercentile(final long count, final double fraction) {
+        long seen = 0;
+
+        for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+            seen += this.latencyHistogram.get(bucket);
+
+            if (count > 0 && seen >= fraction * count) {
+                return String.format("%.3f ms", (1L << bucket) / 1000.0);
+            }
+        }
+
+        return "n/a";
+    }
+}
+
+// Keeps server matches across restarts. Every match start, shot and end is appended as a frame to a journal:
+// a length, the payload and its CRC32C, so a frame torn by a crash is found and cut off. Frames collect in
+// a lock-free queue and a flusher thread writes them a few milliseconds apart, so a shot costs a small array
+// and a queue append, and players never wait on each other or on the disk.
+// The flusher also replays what it wrote into a copy of every open match, and now and then maps a snapshot of
+// those copies to a file, moves it over the last one and starts a new journal. Opening the store reads the
+// snapshot and then the journal, if it was started after that snapshot.
+// Written frames survive the server process dying at once. They are forced to the disk with every snapshot
+// and on close, so a power loss costs at most the frames since the last snapshot.
+final class MatchStore implements Closeable {
+    static final String DEFAULT_PATH = "matches";
+
+    private static final int MAGIC = 0x4253484A;
+    private static final int VERSION = 2;
+    private static final int JOURNAL_HEADER_BYTES = 16;
+    private static final int SNAPSHOT_HEADER_BYTES = 20;
+    private static final String JOURNAL_FILE = "journal";
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final long FLUSH_INTERVAL_MILLIS = 2;
+    private static final long SNAPSHOT_INTERVAL_NANOS = 60_000_000_000L;
+    private static final long SNAPSHOT_JOURNAL_BYTES = 64L << 20;
+    private static final byte START = 1;
+    private static final byte SHOT = 2;
+    private static final byte END = 3;
+
+    private final Path directory;
+    private final FileChannel journal;
+    // Open matches as of the last frame written, only touched by the flusher once the store is open
+    private final Map<Long, MatchRecord> matches;
+    private final List<SavedMatch> savedMatches = new ArrayList<>();
+    private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService flusher;
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private long generation;
+    private long journalBytes;
+    private long lastSnapshot;
+
+    // A match that was open when the store was last closed, ready to carry on
+    static final class SavedMatch {
+        final long id;
+        final Rules rules;
+        final Fleet[] fleets;
+        final int nextShooter;
+
+        private SavedMatch(final long id, final Rules rules, final Fleet[] fleets, final int nextShooter) {
+            this.id = id;
+            this.rules = rules;
+            this.fleets = fleets;
+            this.nextShooter = nextShooter;
+        }
+    }
+
+    private MatchStore(final Path directory, final FileChannel journal, final Map<Long, MatchRecord> matches, final long generation) {
+        this.directory = directory;
+        this.journal = journal;
+        this.matches = matches;
+        this.generation = generation;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "match journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static MatchStore open(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        final Map<Long, MatchRecord> matches = new HashMap<>();
+        final Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        long covered = -1;
+
+        if (Files.exists(snapshot)) {
+            covered = readSnapshot(snapshot, matches);
+        }
+
+        final FileChannel journal = FileChannel.open(directory.resolve(JOURNAL_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long generation = covered + 1;
+
+        // Read rather than mapped, since the snapshot written below truncates the journal
+        if (journal.size() >= JOURNAL_HEADER_BYTES) {
+            final ByteBuffer frames = ByteBuffer.allocate(Math.toIntExact(journal.size()));
+            while (frames.hasRemaining()) {
+                if (journal.read(frames, frames.position()) < 0) {
+                    break;
+                }
+            }
+            frames.flip();
+
+            if (frames.getInt() == MAGIC && frames.getInt() == VERSION) {
+                final long journalGeneration = frames.getLong();
+
+                // An older journal is already in the snapshot, the flusher having stopped before starting a new one
+                if (journalGeneration > covered) {
+                    replay(frames, matches, true);
+                    generation = journalGeneration;
+                }
+            }
+        }
+
+        final MatchStore store = new MatchStore(directory, journal, matches, generation);
+        for (final MatchRecord record : matches.values()) {
+            store.savedMatches.add(new SavedMatch(record.id, record.getRules(),
+                    new Fleet[] {record.createFleet(0), record.createFleet(1)}, record.nextShooter));
+        }
+
+        // Everything read so far goes into a fresh snapshot, which also drops a torn journal tail
+        store.writeSnapshot();
+        store.flusher.scheduleWithFixedDelay(store::flushQuietly, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        return store;
+    }
+
+    List<SavedMatch> getSavedMatches() {
+        return this.savedMatches;
+    }
+
+    void recordStart(final long id, final Rules rules, final Fleet[] fleets) {
+        final MatchRecord record = new MatchRecord(id, rules.size, rules.shipNames, fleets);
+        final ByteBuffer frame = beginFrame(START, 1 + record.getBytes(false));
+        record.write(frame, false);
+        this.pending.add(endFrame(frame));
+    }
+
+    void recordShot(final long id, final int shooter, final int cell) {
+        this.pending.add(endFrame(beginFrame(SHOT, 1 + 8 + 1 + 4).putLong(id).put((byte) shooter).putInt(cell)));
+    }
+
+    void recordEnd(final long id) {
+        this.pending.add(endFrame(beginFrame(END, 1 + 8).putLong(id)));
+    }
+
+    private static ByteBuffer beginFrame(final byte type, final int payloadBytes) {
+        return ByteBuffer.allocate(4 + payloadBytes + 4).putInt(payloadBytes).put(type);
+    }
+
+    private static byte[] endFrame(final ByteBuffer frame) {
+        final CRC32C checksum = new CRC32C();
+        checksum.update(frame.array(), 4, frame.position() - 4);
+        return frame.putInt((int) checksum.getValue()).array();
+    }
+
+    private void flushQuietly() {
+        try {
+            this.flush();
+        } catch (IOException exception) {
+            System.err.printf("Error! Could not write the match journal: %s%n", exception.getMessage());
+        }
+    }
+
+    // Runs on the flusher thread only, or on the closing one once the flusher has stopped
+    private void flush() throws IOException {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+
+        for (byte[] frame = this.pending.poll(); frame != null; frame = this.pending.poll()) {
+            if (this.writing.remaining() < frame.length) {
+                final ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * this.writing.capacity(), this.writing.position() + frame.length));
+                larger.put(this.writing.flip());
+                this.writing = larger;
+            }
+            this.writing.put(frame);
+        }
+
+        this.writing.flip();
+        while (this.writing.hasRemaining()) {
+            this.journalBytes += this.journal.write(this.writing, this.journalBytes);
+        }
+
+        this.writing.rewind();
+        replay(this.writing, this.matches, false);
+        this.writing.clear();
+
+        if (this.journalBytes >= SNAPSHOT_JOURNAL_BYTES || System.nanoTime() - this.lastSnapshot >= SNAPSHOT_INTERVAL_NANOS) {
+            this.writeSnapshot();
+        }
+    }
+
+    // Maps the open matches to a new snapshot file, moves it over the last one and starts the next journal
+    private void writeSnapshot() throws IOException {
+        // The frames since the last snapshot reach the disk before it can replace the one they follow
+        this.journal.force(false);
+
+        long bytes = SNAPSHOT_HEADER_BYTES + 4;
+        for (final MatchRecord record : this.matches.values()) {
+            bytes += record.getBytes(true);
+        }
+
+        final Path temporary = this.directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            snapshot.putInt(MAGIC).putInt(VERSION).putLong(this.generation).putInt(this.matches.size());
+
+            for (final MatchRecord record : this.matches.values()) {
+                record.write(snapshot, true);
+            }
+
+            final CRC32C checksum = new CRC32C();
+            checksum.update(snapshot.duplicate().flip());
+            snapshot.putInt((int) checksum.getValue());
+            snapshot.force();
+        }
+        Files.move(temporary, this.directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        this.forceDirectory();
+
+        this.generation++;
+        this.journal.truncate(0);
+        final ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putLong(this.generation).flip();
+        this.journalBytes = 0;
+        while (header.hasRemaining()) {
+            this.journalBytes += this.journal.write(header, this.journalBytes);
+        }
+        this.journal.force(false);
+        this.lastSnapshot = System.nanoTime();
+    }
+
+    // Makes the move of the new snapshot durable. Some platforms cannot open a directory, and there the move
+    // is as durable as they make it.
+    private void forceDirectory() {
+        try (FileChannel directory = FileChannel.open(this.directory, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException exception) {
+            // Nothing more to do here
+        }
+    }
+
+    // Returns the journal generation the snapshot covers
+    private static long readSnapshot(final Path path, final Map<Long, MatchRecord> matches) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final CRC32C checksum = new CRC32C();
+            checksum.update(snapshot.duplicate().limit(Math.max(snapshot.limit() - 4, 0)));
+
+            if (snapshot.limit() < SNAPSHOT_HEADER_BYTES + 4 || snapshot.getInt() != MAGIC || snapshot.getInt() != VERSION
+                    || snapshot.getInt(snapshot.limit() - 4) != (int) checksum.getValue()) {
+                throw new IOException("Match snapshot " + path + " is damaged or from another version");
+            }
+
+            final long generation = snapshot.getLong();
+            for (int count = snapshot.getInt(); count > 0; count--) {
+                final MatchRecord record = MatchRecord.read(snapshot, true);
+                matches.put(record.id, record);
+            }
+
+            return generation;
+        }
+    }
+
+    // Applies frames to the open matches. Checked frames stop at the first torn or damaged one.
+    private static void replay(final ByteBuffer frames, final Map<Long, MatchRecord> matches, final boolean checked) {
+        final CRC32C checksum = new CRC32C();
+
+        while (frames.remaining() >= 8) {
+            final int length = frames.getInt(frames.position());
+            final int payloadStart = frames.position() + 4;
+
+            if (checked) {
+                if (length < 9 || length > frames.remaining() - 8) {
+                    return;
+                }
+
+                checksum.reset();
+                checksum.update(frames.duplicate().position(payloadStart).limit(payloadStart + length));
+                if (frames.getInt(payloadStart + length) != (int) checksum.getValue()) {
+                    return;
+                }
+            }
+
+            final ByteBuffer payload = frames.duplicate().position(payloadStart + 1).limit(payloadStart + length);
+            switch (frames.get(payloadStart)) {
+                case START: {
+                    final MatchRecord record = MatchRecord.read(payload, false);
+                    matches.put(record.id, record);
+                    break;
+                }
+                case SHOT: {
+                    final MatchRecord record = matches.get(payload.getLong());
+                    if (record != null) {
+                        record.shoot(payload.get(), payload.getInt());
+                    }
+                    break;
+                }
+                case END:
+                    matches.remove(payload.getLong());
+                    break;
+                default:
+                    return;
+            }
+
+            frames.position(payloadStart + length + 4);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.flusher.shutdown();
+        try {
+            this.flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.flush();
+        this.journal.force(false);
+        this.journal.close();
+    }
+
+    // What the store knows of one match: both fleets' ships, the cells fired at on each board and whose turn it is.
+    // Shots are kept as lists rather than one bit per cell, so a match on a huge board stays as small as its game.
+    private static final class MatchRecord {
+        private static final int INITIAL_SHOTS = 16;
+
+        private final long id;
+        private final int size;
+        private final String[] shipNames;
+        // By player, then by ship
+        private final int[][] firstCells = new int[2][];
+        private final int[][] steps = new int[2][];
+        private final int[][] lengths = new int[2][];
+        // By player fired at, the cells in the order they were fired at
+        private final int[][] shots = {new int[INITIAL_SHOTS], new int[INITIAL_SHOTS]};
+        private final int[] shotCounts = new int[2];
+        private int nextShooter;
+
+        private MatchRecord(final long id, final int size, final String[] shipNames) {
+            this.id = id;
+            this.size = size;
+            this.shipNames = shipNames;
+        }
+
+        MatchRecord(final long id, final int size, final String[] shipNames, final Fleet[] fleets) {
+            this(id, size, shipNames);
+
+            for (int player = 0; player < 2; player++) {
+                final int ships = fleets[player].getShipCount();
+                this.firstCells[player] = new int[ships];
+                this.steps[player] = new int[ships];
+                this.lengths[player] = new int[ships];
+
+                for (int ship = 0; ship < ships; ship++) {
+                    this.firstCells[player][ship] = fleets[player].getFirstCell(ship);
+                    this.steps[player][ship] = fleets[player].getStep(ship);
+                    this.lengths[player][ship] = fleets[player].getLength(ship);
+                }
+            }
+        }
+
+        void shoot(final int shooter, final int cell) {
+            final int board = 1 - shooter;
+            if (this.shotCounts[board] == this.shots[board].length) {
+                this.shots[board] = Arrays.copyOf(this.shots[board], 2 * this.shots[board].length);
+            }
+
+            this.shots[board][this.shotCounts[board]++] = cell;
+            this.nextShooter = 1 - shooter;
+        }
+
+        Rules getRules() {
+            final int[] shipLengths = new int[this.shipNames.length];
+            for (int ship = 0; ship < shipLengths.length; ship++) {
+                shipLengths[ship] = this.lengths[0][ship];
+            }
+
+            return new Rules(this.size, this.shipNames, shipLengths);
+        }
+
+        Fleet createFleet(final int player) {
+            final Fleet fleet = Fleet.create(this.size * this.size, this.lengths[player].length);
+
+            for (int ship = 0; ship < this.lengths[player].length; ship++) {
+                final int[] cells = new int[this.lengths[player][ship]];
+                for (int index = 0; index < cells.length; index++) {
+                    cells[index] = this.firstCells[player][ship] + index * this.steps[player][ship];
+                }
+                fleet.addShip(new Ship(cells.length), cells);
+            }
+
+            for (int shot = 0; shot < this.shotCounts[player]; shot++) {
+                fleet.fire(this.shots[player][shot]);
+            }
+
+            return fleet;
+        }
+
+        int getBytes(final boolean withShots) {
+            int bytes = 8 + 2 + 2;
+            for (final String name : this.shipNames) {
+                bytes += 2 + name.getBytes(StandardCharsets.UTF_8).length;
+            }
+            bytes += 2 * (2 + 10 * this.lengths[0].length);
+
+            return withShots ? bytes + 2 * 4 + 4 * (this.shotCounts[0] + this.shotCounts[1]) + 1 : bytes;
+        }
+
+        void write(final ByteBuffer buffer, final boolean withShots) {
+            buffer.putLong(this.id).putShort((short) this.size).putShort((short) this.shipNames.length);
+            for (final String name : this.shipNames) {
+                final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                buffer.putShort((short) bytes.length).put(bytes);
+            }
+
+            for (int player = 0; player < 2; player++) {
+                buffer.putShort((short) this.lengths[player].length);
+                for (int ship = 0; ship < this.lengths[player].length; ship++) {
+                    buffer.putInt(this.firstCells[player][ship]).putInt(this.steps[player][ship]).putShort((short) this.lengths[player][ship]);
+                }
+            }
+
+            if (withShots) {
+                for (int board = 0; board < 2; board++) {
+                    buffer.putInt(this.shotCounts[board]);
+                    for (int shot = 0; shot < this.shotCounts[board]; shot++) {
+                        buffer.putInt(this.shots[board][shot]);
+                    }
+                }
+                buffer.put((byte) this.nextShooter);
+            }
+        }
+
+        static MatchRecord read(final ByteBuffer buffer, final boolean withShots) {
+            final long id = buffer.getLong();
+            final int size = Short.toUnsignedInt(buffer.getShort());
+            final String[] shipNames = new String[Short.toUnsignedInt(buffer.getShort())];
+            for (int ship = 0; ship < shipNames.length; ship++) {
+                final byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+                buffer.get(bytes);
+                shipNames[ship] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            final MatchRecord record = new MatchRecord(id, size, shipNames);
+            for (int player = 0; player < 2; player++) {
+                final int ships = Short.toUnsignedInt(buffer.getShort());
+                record.firstCells[player] = new int[ships];
+                record.steps[player] = new int[ships];
+                record.lengths[player] = new int[ships];
+
+                for (int ship = 0; ship < ships; ship++) {
+                    record.firstCells[player][ship] = buffer.getInt();
+                    record.steps[player][ship] = buffer.getInt();
+                    record.lengths[player][ship] = Short.toUnsignedInt(buffer.getShort());
+                }
+            }
+
+            if (withShots) {
+                for (int board = 0; board < 2; board++) {
+                    final int shots = buffer.getInt();
+                    record.shots[board] = new int[Math.max(shots, INITIAL_SHOTS)];
+                    record.shotCounts[board] = shots;
+                    for (int shot = 0; shot < shots; shot++) {
+                        record.shots[board][shot] = buffer.getInt();
+                    }
+                }
+                record.nextShooter = buffer.get();
+            }
+
+            return record;
+        }
+    }
+}
+
+// Rows are labelled like spreadsheet columns: A to Z, then AA to AZ, BA and so on
+final class Helpers {
+    public static String getRowLabel(final int row) {
+        final StringBuilder label = new StringBuilder();
+
+        for (int value = row + 1; value > 0; value = (value - 1) / 26) {
+            label.append((char) ('A' + (value - 1) % 26));
+        }
+
+        return label.reverse().toString();
+    }
+
+    // Reads up to maxLetters leading capital letters, -1 when there are none
+    public static int parseRowLabel(final String coordinate, final int maxLetters) {
+        int value = 0;
+        int letters = 0;
+
+        while (letters < maxLetters && letters < coordinate.length()
+                && coordinate.charAt(letters) >= 'A' && coordinate.charAt(letters) <= 'Z') {
+            value = value * 26 + coordinate.charAt(letters) - 'A' + 1;
+            letters++;
+        }
+
+        return value - 1;
     }
 }
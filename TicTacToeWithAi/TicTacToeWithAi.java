@@ -1,26 +1,215 @@
 package tictactoe;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
 
 public class Main {
-    public static void main(String[] args) {
-        new TicTacToe();
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException, JMException {
+        long timeBudget = AI.DEFAULT_TIME_BUDGET;
+        int threads = 1;
+        Path databasePath = Paths.get(PerfectPlayDatabase.DEFAULT_PATH);
+        String mode = "play";
+        long games = 100_000;
+        int workers = Runtime.getRuntime().availableProcessors();
+        long seed = System.nanoTime();
+        int size = Board.DEFAULT_SIZE;
+        int winLength = Board.DEFAULT_SIZE;
+        long playouts = AI.DEFAULT_PLAYOUTS;
+        int port = GameServer.DEFAULT_PORT;
+        boolean ponder = false;
+        Path recordPath = null;
+        Player xFilter = null;
+        Player oFilter = null;
+        TicTacToeState outcomeFilter = null;
+        Path endgamesPath = Paths.get(RetrogradeSolver.DEFAULT_DIRECTORY);
+        EvaluationWeights weights = EvaluationWeights.DEFAULT;
+
+        for (final String argument : args) {
+            if (argument.startsWith("--time-budget=")) {
+                timeBudget = Long.parseLong(argument.substring("--time-budget=".length()));
+            } else if (argument.startsWith("--threads=")) {
+                threads = Integer.parseInt(argument.substring("--threads=".length()));
+            } else if (argument.startsWith("--database=")) {
+                databasePath = Paths.get(argument.substring("--database=".length()));
+            } else if (argument.startsWith("--games=")) {
+                games = Long.parseLong(argument.substring("--games=".length()));
+            } else if (argument.startsWith("--workers=")) {
+                workers = Integer.parseInt(argument.substring("--workers=".length()));
+            } else if (argument.startsWith("--seed=")) {
+                seed = Long.parseLong(argument.substring("--seed=".length()));
+            } else if (argument.startsWith("--size=")) {
+                size = Integer.parseInt(argument.substring("--size=".length()));
+            } else if (argument.startsWith("--win-length=")) {
+                winLength = Integer.parseInt(argument.substring("--win-length=".length()));
+            } else if (argument.startsWith("--playouts=")) {
+                playouts = Long.parseLong(argument.substring("--playouts=".length()));
+            } else if ("--ponder".equals(argument)) {
+                ponder = true;
+            } else if ("--telemetry".equals(argument)) {
+                SearchTelemetry.enable();
+            } else if (argument.startsWith("--port=")) {
+                port = Integer.parseInt(argument.substring("--port=".length()));
+            } else if (argument.startsWith("--record=")) {
+                recordPath = Paths.get(argument.substring("--record=".length()));
+            } else if (argument.startsWith("--x-player=")) {
+                xFilter = Player.valueOf(argument.substring("--x-player=".length()).toUpperCase());
+            } else if (argument.startsWith("--o-player=")) {
+                oFilter = Player.valueOf(argument.substring("--o-player=".length()).toUpperCase());
+            } else if (argument.startsWith("--outcome=")) {
+                outcomeFilter = TicTacToeState.valueOf(argument.substring("--outcome=".length()).toUpperCase());
+            } else if (argument.startsWith("--endgames=")) {
+                endgamesPath = Paths.get(argument.substring("--endgames=".length()));
+            } else if (argument.startsWith("--weights=")) {
+                weights = EvaluationWeights.parse(argument.substring("--weights=".length()));
+            } else {
+                mode = argument;
+            }
+        }
+
+        if ("generate-database".equals(mode)) {
+            PerfectPlayDatabase.generate(databasePath);
+            System.out.printf("Perfect play database saved to %s%n", databasePath);
+            return;
+        }
+
+        if ("solve".equals(mode)) {
+            new RetrogradeSolver(size, winLength, endgamesPath, workers).solve();
+            System.out.printf("Endgame database saved to %s%n", endgamesPath.resolve(RetrogradeSolver.getDirectoryName(size, winLength)));
+            return;
+        }
+
+        if ("records".equals(mode)) {
+            printRecordStatistics(recordPath == null ? Paths.get(GameLog.DEFAULT_PATH) : recordPath, xFilter, oFilter, outcomeFilter);
+            return;
+        }
+
+        final PerfectPlayDatabase database = Files.exists(databasePath) ? PerfectPlayDatabase.load(databasePath) : null;
+        final RetrogradeDatabase endgames = Files.isDirectory(endgamesPath) ? RetrogradeDatabase.load(endgamesPath) : null;
+
+        if ("benchmark".equals(mode)) {
+            new Benchmarks(database).run();
+            return;
+        }
+
+        try (GameLog log = recordPath == null ? null : GameLog.open(recordPath)) {
+            if ("tournament".equals(mode)) {
+                new Tournament(size, winLength, games, workers, seed, timeBudget, database, endgames, weights, log).run();
+                return;
+            }
+
+            if ("server".equals(mode)) {
+                new GameServer(port, timeBudget, playouts, database, endgames, log).run();
+                return;
+            }
+
+            try (GameLog.Writer records = log == null ? null : log.newWriter()) {
+                new TicTacToe(new AI(new TranspositionTable(1 << 20, ReplacementPolicy.DEPTH_PREFERRED), timeBudget, threads, database, new Random(), playouts,
+                        endgames, weights), ponder, records);
+            }
+        }
+    }
+
+    private static void printRecordStatistics(final Path path, final Player xPlayer, final Player oPlayer, final TicTacToeState outcome)
+            throws IOException {
+        final long[] outcomes = new long[3];
+        final long[] moves = new long[1];
+        final GameLog.Reader reader = new GameLog.Reader();
+        final long start = System.nanoTime();
+
+        reader.scan(path, xPlayer, oPlayer, outcome, record -> {
+            outcomes[record.getOutcome().ordinal() - TicTacToeState.DRAW.ordinal()]++;
+            moves[0] += record.getMoveCount();
+        });
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final double matched = Math.max(reader.getMatched(), 1);
+        System.out.printf("Scanned %d records (%.1f MB) in %.2f s, %.0f records per second, %d corrupted%n",
+                reader.getScanned(), reader.getBytes() / 1e6, seconds, reader.getScanned() / seconds, reader.getCorrupted());
+        System.out.printf("Matched %d: X wins %.1f%%, draws %.1f%%, O wins %.1f%%, %.1f moves per game%n", reader.getMatched(),
+                100 * outcomes[1] / matched, 100 * outcomes[0] / matched, 100 * outcomes[2] / matched, moves[0] / matched);
     }
 }
 
 final class TicTacToe {
-    private final char[][] table = new char[3][3];
+    private final AI ai;
+    private final InputHandler input;
+    private final PrintStream out;
+    // Told how long every AI move took
+    private final LongConsumer moveLatencies;
+    // Lets a HARD AI search the user's likely replies while they think
+    private final boolean ponder;
+    // Gets every finished game, when present
+    private final GameLog.Writer records;
+    private int[] moves;
+    private Board board;
     private TicTacToeState state;
 
 
-    public TicTacToe () {
-        Command command = InputHandler.getCommand();
+    public TicTacToe (final AI ai, final boolean ponder, final GameLog.Writer records) throws IOException {
+        this(ai, new Scanner(System.in), System.out, latency -> { }, ponder, records);
+    }
+
+    TicTacToe(final AI ai, final Scanner scanner, final PrintStream out, final LongConsumer moveLatencies, final boolean ponder,
+              final GameLog.Writer records) throws IOException {
+        this.ai = ai;
+        this.input = new InputHandler(scanner, out);
+        this.out = out;
+        this.moveLatencies = moveLatencies;
+        this.ponder = ponder;
+        this.records = records;
+        Command command = this.input.getCommand();
 
         while (!command.isExit()) {
             final Player xPlayer = command.getXPlayer();
             final Player oPlayer = command.getOPlayer();
-            final AI ai = new AI();
-            this.createTable();
+            this.board = new Board(command.getSize(), command.getWinLength());
+            this.moves = new int[this.board.getCells()];
             this.printTable();
             this.state = TicTacToeState.X_PLAYING;
             this.updateState();
@@ -29,115 +218,112 @@ final class TicTacToe {
                 final int[] coordinates;
                 if (this.state == TicTacToeState.X_PLAYING) {
                     if (xPlayer == Player.USER) {
-                        coordinates = InputHandler.getValidCoordinates(this.table);
+                        coordinates = this.getUserCoordinates();
                     } else {
-                        System.out.printf("Making move level \"%s\"\n", xPlayer.name().toLowerCase());
-                        coordinates = ai.getCoordinates(this.table, 'X', xPlayer);
+                        this.out.printf("Making move level \"%s\"\n", xPlayer.name().toLowerCase());
+                        coordinates = this.getAiCoordinates('X', xPlayer);
                     }
                 } else {
                     if (oPlayer == Player.USER) {
-                        coordinates =InputHandler.getValidCoordinates(this.table);
+                        coordinates = this.getUserCoordinates();
                     } else {
-                        System.out.printf("Making move level \"%s\"\n", oPlayer.name().toLowerCase());
-                        coordinates = ai.getCoordinates(this.table, 'O', oPlayer);
+                        this.out.printf("Making move level \"%s\"\n", oPlayer.name().toLowerCase());
+                        coordinates = this.getAiCoordinates('O', oPlayer);
                     }
                 }
 
                 this.fillCell(coordinates);
                 this.printTable();
                 this.updateState();
+
+                if (this.ponder && this.state == TicTacToeState.X_PLAYING && xPlayer == Player.USER && oPlayer == Player.HARD) {
+                    this.ai.startPondering(this.board, 'O');
+                } else if (this.ponder && this.state == TicTacToeState.O_PLAYING && oPlayer == Player.USER && xPlayer == Player.HARD) {
+                    this.ai.startPondering(this.board, 'X');
+                }
+
                 if (!this.shouldGameContinue()) {
                     this.printResult();
 
+                    if (this.records != null) {
+                        this.records.write(xPlayer, oPlayer, this.state, this.board.getGeometry(), this.moves, this.board.getCells() - this.board.countEmpty());
+                        this.records.flush();
+                    }
+
                     if (oPlayer == Player.USER || xPlayer == Player.USER) {
-                        InputHandler.clearScanner();
+                        this.input.clearScanner();
                     }
                 }
             }
 
-            command = InputHandler.getCommand();
+            command = this.input.getCommand();
         }
     }
 
-    private void createTable() {
-        final String initialState = " ".repeat(9);
-
-        for (int index = 0; index < initialState.length(); index++) {
-            this.table[index / 3][index % 3] = initialState.charAt(index);
+    private int[] getUserCoordinates() {
+        try {
+            return this.input.getValidCoordinates(this.board);
+        } finally {
+            this.ai.stopPondering();
         }
     }
 
+    private int[] getAiCoordinates(final char sign, final Player level) {
+        final long start = System.nanoTime();
+        final int[] coordinates = this.ai.getCoordinates(this.board, sign, level);
+        this.moveLatencies.accept(System.nanoTime() - start);
+        return coordinates;
+    }
+
     private void printTable() {
-        System.out.println("---------");
+        final int size = this.board.getSize();
+        this.out.println("-".repeat(2 * size + 3));
 
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
                 if (j == 0) {
-                    System.out.print("| ");
+                    this.out.print("| ");
                 }
 
-                System.out.printf("%c ", this.table[i][j]);
+                this.out.printf("%c ", this.board.getCell(i, j));
 
-                if (j == 2) {
-                    System.out.println("|");
+                if (j == size - 1) {
+                    this.out.println("|");
                 }
             }
         }
 
-        System.out.println("---------");
+        this.out.println("-".repeat(2 * size + 3));
     }
 
     private void fillCell(final int[] coordinates) {
-        this.table[coordinates[0] - 1][coordinates[1] - 1] = this.state == TicTacToeState.X_PLAYING ? 'X' : 'O';
+        final int position = this.board.getPosition(coordinates);
+        this.moves[this.board.getCells() - this.board.countEmpty()] = position;
+        this.board.makeMove(position, this.state == TicTacToeState.X_PLAYING ? 'X' : 'O');
     }
 
     private void updateState() {
-        for (int[] winningPosition : TicTacToeUtils.WINNING_POSITIONS) {
-            char cellAtFirst = TicTacToeUtils.getCellAtPosition(winningPosition[0], this.table);
-            char cellAtSecond = TicTacToeUtils.getCellAtPosition(winningPosition[1], this.table);
-            char cellAtThird = TicTacToeUtils.getCellAtPosition(winningPosition[2], this.table);
+        this.state = getState(this.board);
+    }
 
-            if (cellAtFirst == cellAtSecond && cellAtSecond == cellAtThird && cellAtFirst != ' ') {
-                this.state = cellAtFirst == 'X' ? TicTacToeState.X_WON : TicTacToeState.Y_WON;
-                return;
-            }
+    static TicTacToeState getState(final Board board) {
+        if (board.isWin('X')) {
+            return TicTacToeState.X_WON;
         }
 
-        if (this.isTableFull()) {
-            this.state = TicTacToeState.DRAW;
-            return;
+        if (board.isWin('O')) {
+            return TicTacToeState.Y_WON;
         }
 
-        this.setTurn();
-    }
-
-    private void setTurn() {
-        int emptyCells = 0;
-
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                if (this.table[i][j] == ' ') {
-                    emptyCells++;
-                }
-            }
+        if (board.isFull()) {
+            return TicTacToeState.DRAW;
         }
 
-        this.state = emptyCells % 2 == 0 ? TicTacToeState.O_PLAYING : TicTacToeState.X_PLAYING;
+        return getTurn(board);
     }
 
-    private boolean isTableFull() {
-        boolean isFull = true;
-
-        for (int i = 0; i < 3 && isFull; i++) {
-            for (int j = 0; j < 3; j++) {
-                if (this.table[i][j] == ' ') {
-                    isFull = false;
-                    break;
-                }
-            }
-        }
-
-        return isFull;
+    private static TicTacToeState getTurn(final Board board) {
+        return board.getSignToMove() == 'O' ? TicTacToeState.O_PLAYING : TicTacToeState.X_PLAYING;
     }
 
     private void printResult() {
@@ -156,7 +342,7 @@ final class TicTacToe {
                 break;
         }
 
-        System.out.println(message);
+        this.out.println(message);
     }
 
     private boolean shouldGameContinue() {
@@ -165,27 +351,35 @@ final class TicTacToe {
 }
 
 final class InputHandler {
-    private static final Scanner scanner = new Scanner(System.in);
-    public static void clearScanner() {
-        scanner.nextLine();
+    private final Scanner scanner;
+    private final PrintStream out;
+
+    InputHandler(final Scanner scanner, final PrintStream out) {
+        this.scanner = scanner;
+        this.out = out;
+    }
+
+    public void clearScanner() {
+        this.scanner.nextLine();
     }
 
-    public static int[] getValidCoordinates(final char[][] table) {
+    public int[] getValidCoordinates(final Board board) {
         final int[] coordinates = new int[2];
+        final int size = board.getSize();
         boolean areCoordinatesWrong = true;
 
         while(areCoordinatesWrong) {
-            System.out.print("Enter the coordinates: ");
+            this.out.print("Enter the coordinates: ");
+            this.out.flush();
             try {
-                final int firstCoordinate = scanner.nextInt();
-                final int secondCoordinate = scanner.nextInt();
+                final int firstCoordinate = this.scanner.nextInt();
+                final int secondCoordinate = this.scanner.nextInt();
 
-                if (firstCoordinate < 1 || firstCoordinate > 3 || secondCoordinate < 1 || secondCoordinate > 3) {
-                    System.out.println("Coordinates should be from 1 to 3!");
+                if (firstCoordinate < 1 || firstCoordinate > size || secondCoordinate < 1 || secondCoordinate > size) {
+                    this.out.printf("Coordinates should be from 1 to %d!%n", size);
                 } else {
-                    char value = table[firstCoordinate - 1][secondCoordinate - 1];
-                    if (value == 'O' || value == 'X') {
-                        System.out.println("This cell is occupied! Choose another one!");
+                    if (!board.isEmpty(firstCoordinate - 1, secondCoordinate - 1)) {
+                        this.out.println("This cell is occupied! Choose another one!");
                     } else {
                         coordinates[0] = firstCoordinate;
                         coordinates[1] = secondCoordinate;
@@ -193,25 +387,26 @@ final class InputHandler {
                     }
                 }
             } catch (Exception exception) {
-                System.out.println("You should enter numbers!");
-                scanner.nextLine();
+                this.out.println("You should enter numbers!");
+                this.scanner.nextLine();
             }
         }
 
         return coordinates;
     }
 
-    public static Command getCommand() {
+    public Command getCommand() {
         boolean correctCommand = false;
         Command command = null;
 
         while (!correctCommand) {
-            System.out.print("Input command: ");
-            final String input = scanner.nextLine();
+            this.out.print("Input command: ");
+            this.out.flush();
+            final String input = this.scanner.nextLine();
             final String[] parameters = input.split(" ");
             final int length = parameters.length;
             if (length == 0 || (!"start".equals(parameters[0]) && !"exit".equals(parameters[0]))) {
-                System.out.println("Bad parameters!");
+                this.out.println("Bad parameters!");
                 continue;
             }
 
@@ -220,17 +415,35 @@ final class InputHandler {
                 break;
             }
 
-            if (length != 3) {
-                System.out.println("Bad parameters!");
+            if (length != 3 && length != 5) {
+                this.out.println("Bad parameters!");
                 continue;
             }
 
             if (Player.isNotOneOf(parameters[1]) || Player.isNotOneOf(parameters[2])) {
-                System.out.println("Bad parameters!");
+                this.out.println("Bad parameters!");
                 continue;
             }
 
-            command = new Command(false, Player.valueOf(parameters[1].toUpperCase()), Player.valueOf(parameters[2].toUpperCase()));
+            int size = Board.DEFAULT_SIZE;
+            int winLength = Board.DEFAULT_SIZE;
+
+            if (length == 5) {
+                try {
+                    size = Integer.parseInt(parameters[3]);
+                    winLength = Integer.parseInt(parameters[4]);
+                } catch (NumberFormatException numberFormatException) {
+                    this.out.println("Bad parameters!");
+                    continue;
+                }
+
+                if (size < Board.MIN_SIZE || size > Board.MAX_SIZE || winLength < Board.MIN_SIZE || winLength > size) {
+                    this.out.println("Bad parameters!");
+                    continue;
+                }
+            }
+
+            command = new Command(false, Player.valueOf(parameters[1].toUpperCase()), Player.valueOf(parameters[2].toUpperCase()), size, winLength);
             correctCommand = true;
         }
 
@@ -242,17 +455,19 @@ final class Command {
     final private boolean exit;
     final private Player xPlayer;
     final private Player oPlayer;
+    final private int size;
+    final private int winLength;
 
-    Command(final boolean exit, final Player xPlayer, final Player oPlayer) {
+    Command(final boolean exit, final Player xPlayer, final Player oPlayer, final int size, final int winLength) {
         this.exit = exit;
         this.xPlayer = xPlayer;
         this.oPlayer = oPlayer;
+        this.size = size;
+        this.winLength = winLength;
     }
 
     Command(final boolean exit) {
-        this.exit = exit;
-        this.xPlayer = Player.EASY;
-        this.oPlayer = Player.EASY;
+        this(exit, Player.EASY, Player.EASY, Board.DEFAULT_SIZE, Board.DEFAULT_SIZE);
     }
 
     public boolean isExit() {
@@ -266,13 +481,22 @@ final class Command {
     public Player getOPlayer() {
         return this.oPlayer;
     }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    public int getWinLength() {
+        return this.winLength;
+    }
 }
 
 enum Player {
     USER,
     EASY,
     MEDIUM,
-    HARD;
+    HARD,
+    MCTS;
 
     static boolean isNotOneOf(final String input) {
         boolean isOne = false;
@@ -289,241 +513,3266 @@ enum Player {
 }
 
 final class AI {
-    private final Random random = new Random();
-    private char aiSign;
-    private char enemySign;
+    static final long DEFAULT_TIME_BUDGET = 1000;
+    static final long DEFAULT_PLAYOUTS = 20_000;
+    private static final int EXPECTED_REPLY_EXTRA_DEPTH = 2;
+    // Looked up once so a move can check the recording settings without allocating an event
+    private static final EventType MOVE_EVENT_TYPE = EventType.getEventType(MoveEvent.class);
+
+    private final Random random;
+    // Borrowed from tablePool for the length of a HARD search when there is a pool, kept for good otherwise
+    private TranspositionTable transpositionTable;
+    private final TranspositionTablePool tablePool;
+    private final ThreadLocal<Search> searches = new ThreadLocal<>();
+    private final long playouts;
+    // One tree per worker, kept between moves so the part under the moves actually played is reused
+    private final MonteCarloTreeSearch[] trees;
+    private final long timeBudgetNanos;
+    // Root moves are split across this pool, or searched on the calling thread when it is null
+    private final ForkJoinPool pool;
+    // Answers MEDIUM and HARD on 3x3 boards without searching, when present
+    private final PerfectPlayDatabase database;
+    // Answers HARD on any board a RetrogradeSolver has finished, when present
+    private final RetrogradeDatabase endgames;
+    // Scores the positions where a depth-limited search stops
+    private final EvaluationWeights weights;
+    private int rootScore;
+    // Background search of the opponent's replies, started after a move and stopped once they answer
+    private ExecutorService ponderer;
+    private Future<?> pondering;
+    private SearchControl ponderControl;
+    // What the last move cost, for the telemetry: nodes or playouts, completed depth and table lookups,
+    // or whether a database answered it without searching
+    private boolean lastFromDatabase;
+    private long lastNodes;
+    private int lastDepth;
+    private long lastTableProbes;
+    private long lastTableHits;
+
+    AI() {
+        this(new TranspositionTable(1 << 16, ReplacementPolicy.DEPTH_PREFERRED), DEFAULT_TIME_BUDGET, 1, null);
+    }
+
+    AI(final TranspositionTable transpositionTable, final long timeBudgetMillis, final int parallelism, final PerfectPlayDatabase database) {
+        this(transpositionTable, timeBudgetMillis, parallelism, database, new Random());
+    }
+
+    AI(final TranspositionTable transpositionTable, final long timeBudgetMillis, final int parallelism, final PerfectPlayDatabase database, final Random random) {
+        this(transpositionTable, timeBudgetMillis, parallelism, database, random, DEFAULT_PLAYOUTS);
+    }
+
+    AI(final TranspositionTable transpositionTable, final long timeBudgetMillis, final int parallelism, final PerfectPlayDatabase database,
+       final Random random, final long playouts) {
+        this(transpositionTable, timeBudgetMillis, parallelism, database, random, playouts, null);
+    }
+
+    AI(final TranspositionTable transpositionTable, final long timeBudgetMillis, final int parallelism, final PerfectPlayDatabase database,
+       final Random random, final long playouts, final RetrogradeDatabase endgames) {
+        this(transpositionTable, timeBudgetMillis, parallelism, database, random, playouts, endgames, EvaluationWeights.DEFAULT);
+    }
+
+    AI(final TranspositionTable transpositionTable, final long timeBudgetMillis, final int parallelism, final PerfectPlayDatabase database,
+       final Random random, final long playouts, final RetrogradeDatabase endgames, final EvaluationWeights weights) {
+        this(transpositionTable, null, timeBudgetMillis, parallelism, database, random, playouts, endgames, weights);
+    }
+
+    // Borrows a table for every HARD search and gives it back afterwards, so an idle AI holds none
+    AI(final TranspositionTablePool tablePool, final long timeBudgetMillis, final PerfectPlayDatabase database, final Random random,
+       final long playouts, final RetrogradeDatabase endgames) {
+        this(null, tablePool, timeBudgetMillis, 1, database, random, playouts, endgames, EvaluationWeights.DEFAULT);
+    }
 
-    public int[] getCoordinates(final char[][] table, final char sign, final Player difficulty) {
-        int[] coordinates = this.getRandomCoordinates(table);
+    private AI(final TranspositionTable transpositionTable, final TranspositionTablePool tablePool, final long timeBudgetMillis,
+               final int parallelism, final PerfectPlayDatabase database, final Random random, final long playouts,
+               final RetrogradeDatabase endgames, final EvaluationWeights weights) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism should be at least 1");
+        }
+
+        this.transpositionTable = transpositionTable;
+        this.tablePool = tablePool;
+        this.timeBudgetNanos = timeBudgetMillis * 1_000_000;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.database = database;
+        this.endgames = endgames;
+        this.weights = weights;
+        this.random = random;
+        this.playouts = playouts;
+        this.trees = new MonteCarloTreeSearch[parallelism];
+    }
+
+    public int[] getCoordinates(final Board board, final char sign, final Player difficulty) {
+        if (!MOVE_EVENT_TYPE.isEnabled() && !SearchTelemetry.isEnabled()) {
+            return this.computeCoordinates(board, sign, difficulty);
+        }
+
+        final MoveEvent event = new MoveEvent();
+        this.lastFromDatabase = false;
+        this.lastNodes = 0;
+        this.lastDepth = 0;
+        this.lastTableProbes = 0;
+        this.lastTableHits = 0;
+        event.begin();
+        final long start = System.nanoTime();
+        final int[] coordinates = this.computeCoordinates(board, sign, difficulty);
+        final long elapsed = System.nanoTime() - start;
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.level = difficulty.name().toLowerCase();
+            event.boardSize = board.getSize();
+            event.fromDatabase = this.lastFromDatabase;
+            event.nodes = this.lastNodes;
+            event.depth = this.lastDepth;
+            event.tableProbes = this.lastTableProbes;
+            event.tableHitRatio = this.lastTableProbes == 0 ? 0 : (double) this.lastTableHits / this.lastTableProbes;
+            event.commit();
+        }
+
+        SearchTelemetry.record(difficulty, elapsed, this.lastFromDatabase, this.lastNodes, this.lastDepth,
+                this.lastTableProbes, this.lastTableHits);
+        return coordinates;
+    }
+
+    private int[] computeCoordinates(final Board board, final char sign, final Player difficulty) {
+        int[] coordinates = this.getRandomCoordinates(board);
 
         switch (difficulty) {
             case EASY:
             default:
                 break;
             case MEDIUM:
-                coordinates = this.getMediumLevelCoordinates(table, sign);
+                coordinates = this.getMediumLevelCoordinates(board, sign);
                 break;
             case HARD:
-                this.aiSign = sign;
-                this.enemySign = sign == 'X' ? 'O' : 'X';
-                coordinates = this.getHardLevelCoordinates(table, sign);
+                coordinates = this.getHardLevelCoordinates(board, sign);
+                break;
+            case MCTS:
+                coordinates = this.getMonteCarloCoordinates(board);
         }
 
         return coordinates;
     }
 
-    private int[] getRandomCoordinates(final char[][] table) {
-        final List<int[]> emptyCellsCoordinates = new ArrayList<>();
+    // Root parallelization: every worker grows its own tree and their root visit counts are added up
+    private int[] getMonteCarloCoordinates(final Board board) {
+        final long deadline = System.nanoTime() + this.timeBudgetNanos;
+        final long playoutsPerTree = Math.max(this.playouts / this.trees.length, 1);
 
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                if (table[i][j] == ' ') {
-                    emptyCellsCoordinates.add(new int[]{i + 1, j + 1});
-                }
+        // Created on first use so the other levels draw the same random numbers whether or not MCTS is ever played
+        if (this.trees[0] == null) {
+            for (int tree = 0; tree < this.trees.length; tree++) {
+                this.trees[tree] = new MonteCarloTreeSearch(new Random(this.random.nextLong()));
+            }
+        }
+
+        final long playoutsBefore = this.countPlayouts();
+
+        if (this.pool == null) {
+            this.trees[0].search(board, playoutsPerTree, deadline);
+        } else {
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (final MonteCarloTreeSearch tree : this.trees) {
+                tasks.add(() -> {
+                    tree.search(board, playoutsPerTree, deadline);
+                    return null;
+                });
+            }
+            this.pool.invokeAll(tasks);
+        }
+
+        this.lastNodes = this.countPlayouts() - playoutsBefore;
+
+        final long[] visits = new long[board.getCells()];
+        for (final MonteCarloTreeSearch tree : this.trees) {
+            tree.addRootVisits(visits);
+        }
+
+        int bestPosition = -1;
+        for (int position = 0; position < visits.length; position++) {
+            if (board.isEmptyAt(position) && (bestPosition == -1 || visits[position] > visits[bestPosition])) {
+                bestPosition = position;
             }
         }
 
-        return emptyCellsCoordinates.get(random.nextInt(emptyCellsCoordinates.size()));
+        return board.getCoordinates(bestPosition);
     }
 
-    private int[] getMediumLevelCoordinates(final char[][] table, final char sign) {
-        int[] coordinates = this.getRandomCoordinates(table);
+    private long countPlayouts() {
+        long playouts = 0;
 
-        final int[] winningCoordinates = this.getWinningMoveCoordinates(table, sign);
+        for (final MonteCarloTreeSearch tree : this.trees) {
+            playouts += tree.getPlayouts();
+        }
+
+        return playouts;
+    }
+
+    int[] getRandomCoordinates(final Board board) {
+        return board.getCoordinates(board.getEmptyPosition(random.nextInt(board.countEmpty())));
+    }
+
+    private int[] getMediumLevelCoordinates(final Board board, final char sign) {
+        int[] coordinates = this.getRandomCoordinates(board);
+
+        final int[] winningCoordinates;
+        if (this.database != null && this.database.covers(board)) {
+            this.lastFromDatabase = true;
+            final int position = this.database.getMediumMove(board);
+            winningCoordinates = position == -1 ? null : board.getCoordinates(position);
+        } else {
+            winningCoordinates = this.getWinningMoveCoordinates(board, sign);
+        }
 
         return winningCoordinates == null ? coordinates : winningCoordinates;
     }
 
-    private int[] getWinningMoveCoordinates(final char[][] table, final char sign) {
-        int[] enemyWinningCoordinates = null;
-        int[] winningCoordinates = null;
+    int[] getWinningMoveCoordinates(final Board board, final char sign) {
+        final char enemySign = sign == 'X' ? 'O' : 'X';
+        final int needed = board.getWinLength() - 1;
+        int enemyWinningPosition = -1;
+        int winningPosition = -1;
 
-        for (final int[] winningPosition : TicTacToeUtils.WINNING_POSITIONS) {
-            final char cellAtFirst = TicTacToeUtils.getCellAtPosition(winningPosition[0], table);
-            final char cellAtSecond = TicTacToeUtils.getCellAtPosition(winningPosition[1], table);
-            final char cellAtThird = TicTacToeUtils.getCellAtPosition(winningPosition[2], table);
+        for (int line = 0; line < board.getGeometry().lines.length; line++) {
+            if (board.countEmptyInLine(line) != 1) {
+                continue;
+            }
 
-            if (cellAtFirst == ' ') {
-                if (cellAtSecond != ' ' && cellAtSecond == cellAtThird) {
-                    if (cellAtSecond == sign) {
-                        winningCoordinates = TicTacToeUtils.getCoordinatesFromPosition(winningPosition[0]);
-                    } else {
-                        enemyWinningCoordinates = TicTacToeUtils.getCoordinatesFromPosition(winningPosition[0]);
-                    }
-                }
+            if (board.countInLine(line, sign) == needed) {
+                winningPosition = board.getEmptyInLine(line);
+            } else if (board.countInLine(line, enemySign) == needed) {
+                enemyWinningPosition = board.getEmptyInLine(line);
             }
+        }
 
-            if (cellAtSecond == ' ') {
-                if (cellAtFirst != ' ' && cellAtFirst == cellAtThird) {
-                    if (cellAtFirst == sign) {
-                        winningCoordinates = TicTacToeUtils.getCoordinatesFromPosition(winningPosition[1]);
-                    } else {
-                        enemyWinningCoordinates = TicTacToeUtils.getCoordinatesFromPosition(winningPosition[1]);
-                    }
-                }
+        if (winningPosition != -1) {
+            return board.getCoordinates(winningPosition);
+        }
+
+        return enemyWinningPosition != -1 ? board.getCoordinates(enemyWinningPosition) : null;
+    }
+
+
+    private int[] getHardLevelCoordinates(final Board board, final char sign) {
+        if (this.database != null && this.database.covers(board)) {
+            this.lastFromDatabase = true;
+            return board.getCoordinates(this.database.getBestMove(board));
+        }
+
+        if (this.endgames != null && this.endgames.covers(board)) {
+            this.lastFromDatabase = true;
+            return board.getCoordinates(this.endgames.getBestMove(board));
+        }
+
+        if (this.tablePool == null) {
+            return this.searchHardMove(board, sign);
+        }
+
+        this.transpositionTable = this.tablePool.acquire();
+        try {
+            return this.searchHardMove(board, sign);
+        } finally {
+            this.tablePool.release(this.transpositionTable);
+            this.transpositionTable = null;
+        }
+    }
+
+    // Searches one ply deeper on every iteration and keeps the move of the last one that finished in time
+    private int[] searchHardMove(final Board board, final char sign) {
+        this.transpositionTable.nextGeneration();
+        final SearchControl control = new SearchControl(System.nanoTime() + this.timeBudgetNanos);
+        final Search search = this.getSearch(board, control);
+        final int pieces = board.getCells() - board.countEmpty();
+        int bestPosition = -1;
+
+        for (int depth = 1; depth <= board.countEmpty(); depth++) {
+            final int position = this.searchRoot(search, board, sign, depth, bestPosition);
+
+            if (control.isAborted()) {
+                break;
             }
-            
-            if (cellAtThird == ' ') {
-                if (cellAtFirst != ' ' && cellAtFirst == cellAtSecond) {
-                    if (cellAtSecond == sign) {
-                        winningCoordinates = TicTacToeUtils.getCoordinatesFromPosition(winningPosition[2]);
-                    } else {
-                        enemyWinningCoordinates = TicTacToeUtils.getCoordinatesFromPosition(winningPosition[2]);
+
+            bestPosition = position;
+            this.lastDepth = depth;
+
+            // A win or loss known from an older, deeper search may hide an equally fast one still beyond this depth
+            if (Math.abs(this.rootScore) >= Search.WIN_THRESHOLD
+                    && Search.WIN_SCORE - Math.abs(this.rootScore) - pieces <= depth) {
+                break;
+            }
+        }
+
+        if (bestPosition == -1) {
+            final int[] moves = search.getMoveBuffer(pieces);
+            search.getOrderedMoves(sign, -1, moves);
+            bestPosition = moves[0];
+        }
+
+        control.addStatistics(search.getNodes(), search.getTableProbes(), search.getTableHits());
+        this.lastNodes = control.getNodes();
+        this.lastTableProbes = control.getTableProbes();
+        this.lastTableHits = control.getTableHits();
+
+        return board.getCoordinates(bestPosition);
+    }
+
+    // Searches the opponent's likely replies on a background thread while they think. Nothing is returned:
+    // the results land in the transposition table, where the search after their move finds them.
+    void startPondering(final Board board, final char sign) {
+        this.stopPondering();
+
+        // A borrowed table goes back after every move, so there would be nothing to ponder into
+        if (this.tablePool != null || board.isFull() || this.database != null && this.database.covers(board) || this.endgames != null && this.endgames.covers(board)) {
+            return;
+        }
+
+        if (this.ponderer == null) {
+            this.ponderer = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "ponder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        final Board position = board.copy();
+        final SearchControl control = new SearchControl(Long.MAX_VALUE);
+        this.ponderControl = control;
+        this.pondering = this.ponderer.submit(() -> this.ponder(position, sign, control));
+    }
+
+    void stopPondering() {
+        if (this.pondering == null) {
+            return;
+        }
+
+        this.ponderControl.abort();
+        try {
+            this.pondering.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exception) {
+            throw new IllegalStateException(exception.getCause());
+        }
+        this.pondering = null;
+        this.ponderControl = null;
+    }
+
+    // Deepens every reply by one ply before any gets the next, so stopping early leaves them evenly covered.
+    // The reply our own search expected is kept a few plies ahead of the rest.
+    private void ponder(final Board position, final char sign, final SearchControl control) {
+        final char replySign = sign == 'X' ? 'O' : 'X';
+        final Search search = this.getSearch(position, control);
+        final Board board = search.getBoard();
+        final int[] replies = new int[position.getCells()];
+        final int[] moves = new int[position.getCells()];
+        final long entry = this.transpositionTable.probe(position.getCanonicalHash());
+        final int expectedReply = entry == 0 ? -1 : position.fromCanonical(TranspositionTable.getMove(entry));
+        final int replyCount = search.getOrderedMoves(replySign, expectedReply, replies);
+
+        for (int depth = 1; depth < position.countEmpty() && !control.isAborted(); depth++) {
+            for (int reply = 0; reply < replyCount && !control.isAborted(); reply++) {
+                board.makeMove(replies[reply], replySign);
+
+                if (!board.isWinThrough(replies[reply], replySign) && !board.isFull()) {
+                    final int replyDepth = reply == 0 ? depth + EXPECTED_REPLY_EXTRA_DEPTH : depth;
+                    final int count = search.getOrderedMoves(sign, -1, moves);
+                    int bestScore = -Search.INFINITY;
+
+                    for (int index = 0; index < count && !control.isAborted(); index++) {
+                        bestScore = Math.max(bestScore, search.searchMove(moves[index], sign, replyDepth, bestScore - 1));
                     }
                 }
+
+                board.unmakeMove(replies[reply]);
             }
         }
+    }
+
+    // Each thread keeps one Search, and with it its scratch buffers, for as long as the board size stays the same
+    Search getSearch(final Board position, final SearchControl control) {
+        Search search = this.searches.get();
+
+        if (search == null || search.getBoard().getGeometry() != position.getGeometry()) {
+            search = new Search(position.getGeometry(), this.transpositionTable, this.weights);
+            this.searches.set(search);
+        }
 
-        return winningCoordinates != null ? winningCoordinates : enemyWinningCoordinates;
+        search.reset(position, control, this.transpositionTable);
+        return search;
     }
 
+    // Every move is searched with a window just below the best score so far, so a score that ties or beats it
+    // is exact and anything lower can never be picked. Equal scores then go to the lowest position.
+    private int searchRoot(final Search search, final Board position, final char sign, final int depth, final int previousBest) {
+        final int[] moves = search.getMoveBuffer(position.getCells() - position.countEmpty());
+        final int count = search.getOrderedMoves(sign, previousBest, moves);
+        final int[] scores = search.getScoreBuffer();
+        final AtomicInteger sharedBest = new AtomicInteger(-Search.INFINITY);
+
+        scores[0] = search.searchMove(moves[0], sign, depth, sharedBest.get() - 1);
+        sharedBest.accumulateAndGet(scores[0], Math::max);
+
+        if (this.pool == null) {
+            for (int index = 1; index < count; index++) {
+                scores[index] = search.searchMove(moves[index], sign, depth, sharedBest.get() - 1);
+                sharedBest.accumulateAndGet(scores[index], Math::max);
+            }
+        } else if (count > 1) {
+            this.pool.invoke(new RootSplitTask(this, position, search.getControl(), moves, count, scores, sign, depth, sharedBest));
+        }
+
+        int bestScore = -Search.INFINITY;
+        int bestPosition = position.getCells();
 
-    private int[] getHardLevelCoordinates(final char[][] table, final char sign) {
-        final int[] coordinates = this.minimax(table, sign).getCoordinates();
-        coordinates[0] += 1;
-        coordinates[1] += 1;
+        for (int index = 0; index < count; index++) {
+            if (scores[index] > bestScore || scores[index] == bestScore && moves[index] < bestPosition) {
+                bestScore = scores[index];
+                bestPosition = moves[index];
+            }
+        }
 
-        return coordinates;
+        this.rootScore = bestScore;
+        return bestPosition;
+    }
+}
+
+// Flight recorder event committed for every AI move while a recording has it enabled
+@Name("tictactoe.AiMove")
+@Label("AI Move")
+@Category("Tic-Tac-Toe")
+final class MoveEvent extends Event {
+    @Label("Level")
+    String level;
+
+    @Label("Board Size")
+    int boardSize;
+
+    @Label("From Database")
+    @Description("Answered by the perfect play or endgame database without searching")
+    boolean fromDatabase;
+
+    @Label("Nodes")
+    @Description("Search nodes, or playouts for MCTS")
+    long nodes;
+
+    @Label("Depth")
+    @Description("Deepest search that finished in time")
+    int depth;
+
+    @Label("Table Probes")
+    long tableProbes;
+
+    @Label("Table Hit Ratio")
+    @Percentage
+    double tableHitRatio;
+}
+
+// Aggregate statistics per level, exposed over JMX once enabled. While disabled a move costs one volatile read.
+final class SearchTelemetry {
+    static final String OBJECT_NAME = "tictactoe:type=SearchTelemetry";
+    // Latency histogram buckets hold moves that took less than 2^bucket microseconds
+    private static final int LATENCY_BUCKETS = 40;
+    private static final int LEVELS = Player.values().length;
+    private static final Statistics STATISTICS = new Statistics();
+
+    private static volatile boolean enabled;
+
+    private SearchTelemetry() {
+    }
+
+    static void enable() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(OBJECT_NAME);
+
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new StandardMBean(STATISTICS, StatisticsMBean.class), name);
+        }
+        enabled = true;
     }
 
-    private Move minimax(final char[][] newTable, final char sign) {
-        final int[][] emptyCells = this.getEmptyCellsCoordinates(newTable);
+    static boolean isEnabled() {
+        return enabled;
+    }
 
-        if (isWin(newTable, this.aiSign)) {
-            final Move move = new Move();
-            move.setScore(10);
-            return move;
-        } else if (isWin(newTable, this.enemySign)) {
-            final Move move = new Move();
-            move.setScore(-10);
-            return move;
-        } else if (emptyCells.length == 0) {
-            final Move move = new Move();
-            move.setScore(0);
-            return move;
+    static void record(final Player level, final long nanos, final boolean fromDatabase, final long nodes, final int depth,
+                       final long tableProbes, final long tableHits) {
+        if (enabled) {
+            STATISTICS.record(level.ordinal(), nanos, fromDatabase, nodes, depth, tableProbes, tableHits);
         }
+    }
+
+    // Levels are passed by name, as typed in the start command. JMX only accepts public management interfaces.
+    public interface StatisticsMBean {
+        long getMoves(String level);
+
+        double getMeanLatencyMillis(String level);
+
+        // Upper bound of the histogram bucket holding the given percentile
+        double getLatencyPercentileMillis(String level, double percentile);
+
+        // Bucket n counts the moves that took less than 2^n microseconds
+        long[] getLatencyHistogram(String level);
+
+        // Moves answered by a database; they are left out of the node and depth means
+        long getDatabaseMoves(String level);
 
-        final ArrayList<Move> moves = new ArrayList<>();
+        double getMeanNodes(String level);
 
-        for (final int[] emptyCell : emptyCells) {
-            final Move move = new Move();
-            move.setCoordinates(emptyCell);
+        double getMeanDepth(String level);
 
-            newTable[emptyCell[0]][emptyCell[1]] = sign;
+        double getTableHitRatio(String level);
 
-            final Move result;
-            if (sign == this.enemySign) {
-                result = this.minimax(newTable, this.aiSign);
+        void reset();
+    }
+
+    private static final class Statistics implements StatisticsMBean {
+        private final AtomicLongArray moves = new AtomicLongArray(LEVELS);
+        private final AtomicLongArray latencyNanos = new AtomicLongArray(LEVELS);
+        private final AtomicLongArray databaseMoves = new AtomicLongArray(LEVELS);
+        private final AtomicLongArray nodes = new AtomicLongArray(LEVELS);
+        private final AtomicLongArray depths = new AtomicLongArray(LEVELS);
+        private final AtomicLongArray tableProbes = new AtomicLongArray(LEVELS);
+        private final AtomicLongArray tableHits = new AtomicLongArray(LEVELS);
+        private final AtomicLongArray latencyHistograms = new AtomicLongArray(LEVELS * LATENCY_BUCKETS);
+
+        void record(final int index, final long nanos, final boolean fromDatabase, final long nodes, final int depth,
+                    final long tableProbes, final long tableHits) {
+            this.moves.incrementAndGet(index);
+            this.latencyNanos.addAndGet(index, nanos);
+
+            if (fromDatabase) {
+                this.databaseMoves.incrementAndGet(index);
             } else {
-                result = this.minimax(newTable, this.enemySign);
+                this.nodes.addAndGet(index, nodes);
+                this.depths.addAndGet(index, depth);
+                this.tableProbes.addAndGet(index, tableProbes);
+                this.tableHits.addAndGet(index, tableHits);
             }
-            move.setScore(result.getScore());
 
-            newTable[emptyCell[0]][emptyCell[1]] = ' ';
+            final int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos / 1000), LATENCY_BUCKETS - 1);
+            this.latencyHistograms.incrementAndGet(index * LATENCY_BUCKETS + bucket);
+        }
+
+        private static int getIndex(final String level) {
+            return Player.valueOf(level.toUpperCase()).ordinal();
+        }
+
+        @Override
+        public long getMoves(final String level) {
+            return this.moves.get(getIndex(level));
+        }
 
-            moves.add(move);
+        @Override
+        public double getMeanLatencyMillis(final String level) {
+            final int index = getIndex(level);
+            final long count = this.moves.get(index);
+            return count == 0 ? 0 : this.latencyNanos.get(index) / 1e6 / count;
         }
 
-        int bestMove = 0;
+        @Override
+        public double getLatencyPercentileMillis(final String level, final double percentile) {
+            final int index = getIndex(level);
+            final long count = this.moves.get(index);
+            long seen = 0;
 
-        if (sign == this.aiSign) {
-            int bestScore = -10000;
+            for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+                seen += this.latencyHistograms.get(index * LATENCY_BUCKETS + bucket);
 
-            for (final Move move : moves) {
-                if (move.getScore() > bestScore) {
-                    bestScore = move.getScore();
-                    bestMove = moves.indexOf(move);
+                if (count > 0 && seen >= percentile / 100 * count) {
+                    return (1L << bucket) / 1000.0;
                 }
             }
-        } else {
-            int bestScore = 10000;
 
-            for (final Move move : moves) {
-                if (move.getScore() < bestScore) {
-                    bestScore = move.getScore();
-                    bestMove = moves.indexOf(move);
-                }
+            return 0;
+        }
+
+        @Override
+        public long[] getLatencyHistogram(final String level) {
+            final int index = getIndex(level);
+            final long[] histogram = new long[LATENCY_BUCKETS];
+
+            for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+                histogram[bucket] = this.latencyHistograms.get(index * LATENCY_BUCKETS + bucket);
             }
+
+            return histogram;
         }
 
-        return moves.get(bestMove);
-    }
+        @Override
+        public long getDatabaseMoves(final String level) {
+            return this.databaseMoves.get(getIndex(level));
+        }
 
-    private boolean isWin(final char[][] table, final char sign) {
-        for (int[] winningPosition : TicTacToeUtils.WINNING_POSITIONS) {
-            char cellAtFirst = TicTacToeUtils.getCellAtPosition(winningPosition[0], table);
-            char cellAtSecond = TicTacToeUtils.getCellAtPosition(winningPosition[1], table);
-            char cellAtThird = TicTacToeUtils.getCellAtPosition(winningPosition[2], table);
+        @Override
+        public double getMeanNodes(final String level) {
+            final int index = getIndex(level);
+            final long count = this.moves.get(index) - this.databaseMoves.get(index);
+            return count <= 0 ? 0 : (double) this.nodes.get(index) / count;
+        }
 
-            if (cellAtFirst == cellAtSecond && cellAtSecond == cellAtThird && cellAtFirst == sign) {
-                return true;
-            }
+        @Override
+        public double getMeanDepth(final String level) {
+            final int index = getIndex(level);
+            final long count = this.moves.get(index) - this.databaseMoves.get(index);
+            return count <= 0 ? 0 : (double) this.depths.get(index) / count;
         }
 
-        return false;
-    }
+        @Override
+        public double getTableHitRatio(final String level) {
+            final int index = getIndex(level);
+            final long probes = this.tableProbes.get(index);
+            return probes == 0 ? 0 : (double) this.tableHits.get(index) / probes;
+        }
 
-    private int[][] getEmptyCellsCoordinates(final char[][] table) {
-        final ArrayList<int[]> emptyCells = new ArrayList<>();
+        @Override
+        public void reset() {
+            for (int index = 0; index < LEVELS; index++) {
+                this.moves.set(index, 0);
+                this.latencyNanos.set(index, 0);
+                this.databaseMoves.set(index, 0);
+                this.nodes.set(index, 0);
+                this.depths.set(index, 0);
+                this.tableProbes.set(index, 0);
+                this.tableHits.set(index, 0);
+            }
 
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                if (table[i][j] == ' ') {
-                    emptyCells.add(new int[] {i, j});
-                }
+            for (int index = 0; index < this.latencyHistograms.length(); index++) {
+                this.latencyHistograms.set(index, 0);
             }
         }
-
-        return emptyCells.toArray(new int[emptyCells.size()][2]);
     }
 }
 
-final class Move {
-    private int[] coordinates;
-    private int score;
-
-    int[] getCoordinates() {
-        return this.coordinates;
+// Searches every root move but the first, which the caller has already searched to set the bound
+@SuppressWarnings("serial")
+final class RootSplitTask extends RecursiveAction {
+    private final AI ai;
+    private final Board position;
+    private final SearchControl control;
+    private final int[] moves;
+    private final int count;
+    private final int[] scores;
+    private final char sign;
+    private final int depth;
+    private final AtomicInteger sharedBest;
+
+    RootSplitTask(final AI ai, final Board position, final SearchControl control, final int[] moves, final int count,
+                  final int[] scores, final char sign, final int depth, final AtomicInteger sharedBest) {
+        this.ai = ai;
+        this.position = position;
+        this.control = control;
+        this.moves = moves;
+        this.count = count;
+        this.scores = scores;
+        this.sign = sign;
+        this.depth = depth;
+        this.sharedBest = sharedBest;
     }
 
-    void setCoordinates(final int[] coordinates) {
-        this.coordinates = coordinates.clone();
-    }
+    @Override
+    protected void compute() {
+        final List<RootMoveTask> tasks = new ArrayList<>();
+
+        for (int index = 1; index < this.count; index++) {
+            tasks.add(new RootMoveTask(index));
+        }
 
-    int getScore() {
-        return this.score;
+        invokeAll(tasks);
     }
 
-    void setScore(final int score) {
-        this.score = score;
+    @SuppressWarnings("serial")
+    private final class RootMoveTask extends RecursiveAction {
+        private final int index;
+
+        RootMoveTask(final int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            final Search worker = RootSplitTask.this.ai.getSearch(RootSplitTask.this.position, RootSplitTask.this.control);
+            final int score = worker.searchMove(RootSplitTask.this.moves[this.index], RootSplitTask.this.sign,
+                    RootSplitTask.this.depth, RootSplitTask.this.sharedBest.get() - 1);
+            RootSplitTask.this.scores[this.index] = score;
+            RootSplitTask.this.control.addStatistics(worker.getNodes(), worker.getTableProbes(), worker.getTableHits());
+            RootSplitTask.this.sharedBest.accumulateAndGet(score, Math::max);
+        }
     }
 }
 
-enum TicTacToeState {
-    X_PLAYING,
-    O_PLAYING,
-    DRAW,
-    X_WON,
-    Y_WON
-}
+// UCT search: each playout walks down the tree through the child with the best upper confidence bound,
+// adds one node, plays random moves until the game ends and backs the result up the path
+final class MonteCarloTreeSearch {
+    private static final double EXPLORATION = Math.sqrt(2);
+    private static final int PLAYOUTS_BETWEEN_CLOCK_CHECKS = 64;
+
+    private final Random random;
+    private Board rootBoard;
+    private Board scratch;
+    private long[] candidates;
+    private Node root;
+    private long playouts;
+
+    MonteCarloTreeSearch(final Random random) {
+        this.random = random;
+    }
 
-final class TicTacToeUtils {
-    public static int[][] WINNING_POSITIONS = {
-            {0, 1, 2},
-            {3, 4, 5},
-            {6, 7, 8},
-            {0, 3, 6},
-            {1, 4, 7},
-            {2, 5, 8},
-            {0, 4, 8},
-            {2, 4, 6}
-    };
+    void search(final Board board, final long playouts, final long deadline) {
+        this.moveRootTo(board);
+
+        for (long playout = 0; playout < playouts; playout++) {
+            if (playout % PLAYOUTS_BETWEEN_CLOCK_CHECKS == 0 && System.nanoTime() > deadline) {
+                break;
+            }
 
-    public static char getCellAtPosition(final int position, final char[][] table) {
-        return table[position / 3][position % 3];
+            this.playOnce();
+            this.playouts++;
+        }
+    }
+
+    long getPlayouts() {
+        return this.playouts;
     }
 
-    public static int[] getCoordinatesFromPosition(final int position) {
-        return new int[] {position / 3 + 1, position % 3 + 1};
+    void addRootVisits(final long[] visits) {
+        for (final Node child : this.root.children) {
+            visits[child.move] += child.visits;
+        }
     }
+
+    // Keeps the subtree of the current position if the tree was grown from an earlier position of the same game
+    private void moveRootTo(final Board board) {
+        if (this.rootBoard == null || this.rootBoard.getGeometry() != board.getGeometry()) {
+            this.rootBoard = board.copy();
+            this.scratch = board.copy();
+            this.candidates = new long[board.getGeometry().words];
+            this.root = this.createNode(-1, board.getSignToMove() == 'X' ? 'O' : 'X', null, this.rootBoard);
+            return;
+        }
+
+        Node node = board.isReachableFrom(this.rootBoard) ? this.root : null;
+        final int pieces = board.getCells() - board.countEmpty();
+
+        for (int depth = this.rootBoard.getCells() - this.rootBoard.countEmpty(); node != null && depth < pieces; depth++) {
+            Node next = null;
+
+            for (final Node child : node.children) {
+                if (board.getCell(child.move / board.getSize(), child.move % board.getSize()) == child.sign) {
+                    next = child;
+                    break;
+                }
+            }
+
+            node = next;
+        }
+
+        this.rootBoard.copyFrom(board);
+        if (node == null) {
+            this.root = this.createNode(-1, board.getSignToMove() == 'X' ? 'O' : 'X', null, this.rootBoard);
+        } else {
+            node.parent = null;
+            this.root = node;
+        }
+    }
+
+    private void playOnce() {
+        final Board board = this.scratch;
+        board.copyFrom(this.rootBoard);
+        Node node = this.root;
+
+        while (node.winner == 0 && node.untriedCount == 0 && !node.children.isEmpty()) {
+            node = this.selectChild(node);
+            board.makeMove(node.move, node.sign);
+        }
+
+        if (node.winner == 0 && node.untriedCount > 0) {
+            final int index = this.random.nextInt(node.untriedCount);
+            final int move = node.untried[index];
+            node.untried[index] = node.untried[--node.untriedCount];
+            final char sign = node.sign == 'X' ? 'O' : 'X';
+            board.makeMove(move, sign);
+            final Node child = this.createNode(move, sign, node, board);
+            node.children.add(child);
+            node = child;
+        }
+
+        final char winner = node.winner != 0 ? node.winner : this.playOut(board);
+
+        for (; node != null; node = node.parent) {
+            node.visits++;
+            if (winner == node.sign) {
+                node.wins += 1;
+            } else if (winner == Node.DRAW) {
+                node.wins += 0.5;
+            }
+        }
+    }
+
+    private Node selectChild(final Node node) {
+        final double logVisits = Math.log(node.visits);
+        Node best = null;
+        double bestValue = Double.NEGATIVE_INFINITY;
+
+        for (final Node child : node.children) {
+            final double value = child.wins / child.visits + EXPLORATION * Math.sqrt(logVisits / child.visits);
+
+            if (value > bestValue) {
+                bestValue = value;
+                best = child;
+            }
+        }
+
+        return best;
+    }
+
+    // Random moves until someone wins or the board fills up; returns the winner or DRAW
+    private char playOut(final Board board) {
+        while (!board.isFull()) {
+            final char sign = board.getSignToMove();
+            final int position = board.getEmptyPosition(this.random.nextInt(board.countEmpty()));
+            board.makeMove(position, sign);
+
+            if (board.isWinThrough(position, sign)) {
+                return sign;
+            }
+        }
+
+        return Node.DRAW;
+    }
+
+    private Node createNode(final int move, final char sign, final Node parent, final Board board) {
+        final Node node = new Node(move, sign, parent);
+
+        if (move >= 0 && board.isWinThrough(move, sign)) {
+            node.winner = sign;
+        } else if (board.isFull()) {
+            node.winner = Node.DRAW;
+        } else {
+            board.getCandidates(this.candidates);
+            node.untried = new int[board.countEmpty()];
+
+            for (int word = 0; word < this.candidates.length; word++) {
+                for (long bits = this.candidates[word]; bits != 0; bits &= bits - 1) {
+                    node.untried[node.untriedCount++] = word << 6 | Long.numberOfTrailingZeros(bits);
+                }
+            }
+        }
+
+        return node;
+    }
+
+    private static final class Node {
+        static final char DRAW = '-';
+
+        final int move;
+        // The side that played the move leading here; wins are counted for this side
+        final char sign;
+        Node parent;
+        final List<Node> children = new ArrayList<>();
+        int[] untried;
+        int untriedCount;
+        // 0 while the game goes on, otherwise the winning sign or DRAW
+        char winner;
+        int visits;
+        double wins;
+
+        Node(final int move, final char sign, final Node parent) {
+            this.move = move;
+            this.sign = sign;
+            this.parent = parent;
+        }
+    }
+}
+
+// Deadline and stop flag shared by every thread working on one move
+final class SearchControl {
+    private final long deadline;
+    private volatile boolean aborted;
+    // Totals over every thread, added once per finished root move
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong tableProbes = new AtomicLong();
+    private final AtomicLong tableHits = new AtomicLong();
+
+    SearchControl(final long deadline) {
+        this.deadline = deadline;
+    }
+
+    void addStatistics(final long nodes, final long tableProbes, final long tableHits) {
+        this.nodes.addAndGet(nodes);
+        this.tableProbes.addAndGet(tableProbes);
+        this.tableHits.addAndGet(tableHits);
+    }
+
+    long getNodes() {
+        return this.nodes.get();
+    }
+
+    long getTableProbes() {
+        return this.tableProbes.get();
+    }
+
+    long getTableHits() {
+        return this.tableHits.get();
+    }
+
+    boolean isAborted() {
+        return this.aborted;
+    }
+
+    void checkDeadline() {
+        if (System.nanoTime() > this.deadline) {
+            this.aborted = true;
+        }
+    }
+
+    void abort() {
+        this.aborted = true;
+    }
+}
+
+// Alpha-beta search over one board; each thread works on its own copy.
+// Move lists go into one buffer per number of pieces on the board, so once every buffer has been
+// used a search allocates nothing.
+final class Search {
+    static final int WIN_SCORE = 100_000;
+    // Any score at least this large is a proven win, whatever the board size
+    static final int WIN_THRESHOLD = WIN_SCORE - Board.MAX_SIZE * Board.MAX_SIZE;
+    static final int INFINITY = 1_000_000;
+    private static final int NODES_BETWEEN_CLOCK_CHECKS = 1024;
+
+    private final Board board;
+    private TranspositionTable transpositionTable;
+    private final int[][] moveBuffers;
+    private final int[] scoreBuffer;
+    private final long[] candidates;
+    private final long[] taken;
+    private SearchControl control;
+    private long nodes;
+    private long tableProbes;
+    private long tableHits;
+
+    Search(final BoardGeometry geometry, final TranspositionTable transpositionTable, final EvaluationWeights weights) {
+        this.board = new Board(geometry);
+        this.board.setEvaluationWeights(weights);
+        this.transpositionTable = transpositionTable;
+        this.moveBuffers = new int[geometry.cells][];
+        this.scoreBuffer = new int[geometry.cells];
+        this.candidates = new long[geometry.words];
+        this.taken = new long[geometry.words];
+    }
+
+    void reset(final Board position, final SearchControl control, final TranspositionTable transpositionTable) {
+        this.board.copyFrom(position);
+        this.control = control;
+        this.transpositionTable = transpositionTable;
+        this.nodes = 0;
+        this.tableProbes = 0;
+        this.tableHits = 0;
+    }
+
+    Board getBoard() {
+        return this.board;
+    }
+
+    SearchControl getControl() {
+        return this.control;
+    }
+
+    long getNodes() {
+        return this.nodes;
+    }
+
+    long getTableProbes() {
+        return this.tableProbes;
+    }
+
+    long getTableHits() {
+        return this.tableHits;
+    }
+
+    int[] getMoveBuffer(final int pieces) {
+        if (this.moveBuffers[pieces] == null) {
+            this.moveBuffers[pieces] = new int[this.board.getCells()];
+        }
+
+        return this.moveBuffers[pieces];
+    }
+
+    int[] getScoreBuffer() {
+        return this.scoreBuffer;
+    }
+
+    int searchMove(final int position, final char sign, final int depth, final int alpha) {
+        this.board.makeMove(position, sign);
+        final int score = -this.negamax(depth - 1, -INFINITY, -alpha, position);
+        this.board.unmakeMove(position);
+
+        return score;
+    }
+
+    // Scores are from the point of view of the side to move. A lost position is worth less the fewer
+    // pieces are on the board, so faster wins score higher and the score depends on the position only
+    private int negamax(final int depth, int alpha, int beta, final int lastPosition) {
+        if (++this.nodes % NODES_BETWEEN_CLOCK_CHECKS == 0) {
+            this.control.checkDeadline();
+        }
+
+        if (this.control.isAborted()) {
+            return 0;
+        }
+
+        final Board board = this.board;
+        final char sign = board.getSignToMove();
+
+        if (board.isWinThrough(lastPosition, sign == 'X' ? 'O' : 'X')) {
+            return -(WIN_SCORE - (board.getCells() - board.countEmpty()));
+        } else if (board.isFull()) {
+            return 0;
+        } else if (depth == 0) {
+            return board.evaluate(sign);
+        }
+
+        // Searching deeper than the number of empty cells gives the same, exact, answer
+        final int effectiveDepth = Math.min(depth, board.countEmpty());
+        final long hash = board.getCanonicalHash();
+        final int originalAlpha = alpha;
+        final long entry = this.transpositionTable.probe(hash);
+        int hashMove = -1;
+        this.tableProbes++;
+
+        if (entry != 0) {
+            this.tableHits++;
+            hashMove = board.fromCanonical(TranspositionTable.getMove(entry));
+
+            if (TranspositionTable.getDepth(entry) >= effectiveDepth) {
+                final int score = TranspositionTable.getScore(entry);
+
+                switch (TranspositionTable.getBound(entry)) {
+                    case EXACT:
+                        return score;
+                    case LOWER:
+                        alpha = Math.max(alpha, score);
+                        break;
+                    case UPPER:
+                        beta = Math.min(beta, score);
+                        break;
+                }
+
+                if (alpha >= beta) {
+                    return score;
+                }
+            }
+        }
+
+        int bestScore = -INFINITY;
+        int bestPosition = -1;
+        final int[] moves = this.getMoveBuffer(board.getCells() - board.countEmpty());
+        final int count = this.getOrderedMoves(sign, hashMove, moves);
+
+        for (int index = 0; index < count; index++) {
+            final int position = moves[index];
+            board.makeMove(position, sign);
+            final int score = -this.negamax(effectiveDepth - 1, -beta, -alpha, position);
+            board.unmakeMove(position);
+
+            if (score > bestScore) {
+                bestScore = score;
+                bestPosition = position;
+            }
+
+            if (score > alpha) {
+                alpha = score;
+            }
+
+            if (alpha >= beta) {
+                break;
+            }
+        }
+
+        if (this.control.isAborted()) {
+            return 0;
+        }
+
+        final Bound bound;
+        if (bestScore <= originalAlpha) {
+            bound = Bound.UPPER;
+        } else if (bestScore >= beta) {
+            bound = Bound.LOWER;
+        } else {
+            bound = Bound.EXACT;
+        }
+        this.transpositionTable.store(hash, bestScore, bound, effectiveDepth, board.toCanonical(bestPosition));
+
+        return bestScore;
+    }
+
+    // The remembered best move first, then immediate wins, blocks, and the cells with the most lines through them
+    // Fills the buffer and returns how many moves it holds
+    int getOrderedMoves(final char sign, final int firstMove, final int[] moves) {
+        final Board board = this.board;
+        final BoardGeometry geometry = board.getGeometry();
+        final int needed = board.getWinLength() - 1;
+        final long[] candidates = this.candidates;
+        final long[] taken = this.taken;
+        board.getCandidates(candidates);
+        Arrays.fill(taken, 0);
+        int count = 0;
+
+        if (firstMove >= 0 && board.isEmptyAt(firstMove)) {
+            moves[count++] = firstMove;
+            taken[firstMove >>> 6] |= 1L << firstMove;
+        }
+
+        for (int pass = 0; pass < 2; pass++) {
+            final char lineSign = pass == 0 ? sign : sign == 'X' ? 'O' : 'X';
+
+            for (int line = 0; line < geometry.lines.length; line++) {
+                if (board.countEmptyInLine(line) != 1 || board.countInLine(line, lineSign) != needed) {
+                    continue;
+                }
+
+                final int position = board.getEmptyInLine(line);
+                if ((taken[position >>> 6] & 1L << position) == 0) {
+                    moves[count++] = position;
+                    taken[position >>> 6] |= 1L << position;
+                }
+            }
+        }
+
+        for (final int position : geometry.orderedCells) {
+            if ((candidates[position >>> 6] & ~taken[position >>> 6] & 1L << position) != 0) {
+                moves[count++] = position;
+            }
+        }
+
+        return count;
+    }
+}
+
+// Everything about a board of a given size and win length that never changes during a game
+final class BoardGeometry {
+    // Above this many cells the search only looks at cells close to the pieces already played
+    private static final int FULL_WIDTH_CELLS = 25;
+    private static final int NEIGHBOURHOOD_RADIUS = 2;
+    private static final Map<Long, BoardGeometry> GEOMETRIES = new ConcurrentHashMap<>();
+
+    static final int SYMMETRIES = 8;
+
+    final int size;
+    final int winLength;
+    final int cells;
+    final int words;
+    final long[] fullMask;
+    // Rows, then columns, then diagonals going down-right, then diagonals going down-left
+    final int[][] lines;
+    final int[][] cellLines;
+    final int[] orderedCells;
+    final long[][] neighbourhoods;
+    final int[][] permutations;
+    final int[][] inversePermutations;
+    final long[] xKeys;
+    final long[] oKeys;
+    final long emptyHash;
+    // Change in the packed threat counts, X's in the low half and O's in the high half, when X or O adds a piece
+    // to a line with the counts at this index; a threat is a line one piece short of a win with no enemy piece
+    final int[] xThreatDeltas;
+    final int[] oThreatDeltas;
+
+    private BoardGeometry(final int size, final int winLength) {
+        this.size = size;
+        this.winLength = winLength;
+        this.cells = size * size;
+        this.words = (this.cells + 63) >>> 6;
+        this.fullMask = new long[this.words];
+        for (int position = 0; position < this.cells; position++) {
+            this.fullMask[position >>> 6] |= 1L << position;
+        }
+
+        this.lines = this.createLines();
+        final List<List<Integer>> linesThroughCells = new ArrayList<>();
+        for (int position = 0; position < this.cells; position++) {
+            linesThroughCells.add(new ArrayList<>());
+        }
+
+        for (int line = 0; line < this.lines.length; line++) {
+            for (final int position : this.lines[line]) {
+                linesThroughCells.get(position).add(line);
+            }
+        }
+
+        this.cellLines = new int[this.cells][];
+        for (int position = 0; position < this.cells; position++) {
+            this.cellLines[position] = linesThroughCells.get(position).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        final Integer[] cellsByLines = new Integer[this.cells];
+        for (int position = 0; position < this.cells; position++) {
+            cellsByLines[position] = position;
+        }
+        Arrays.sort(cellsByLines, (first, second) -> this.cellLines[second].length - this.cellLines[first].length);
+        this.orderedCells = Arrays.stream(cellsByLines).mapToInt(Integer::intValue).toArray();
+
+        this.neighbourhoods = this.cells > FULL_WIDTH_CELLS ? this.createNeighbourhoods() : null;
+        this.permutations = this.createPermutations();
+        this.inversePermutations = new int[SYMMETRIES][this.cells];
+        for (int symmetry = 0; symmetry < SYMMETRIES; symmetry++) {
+            for (int position = 0; position < this.cells; position++) {
+                this.inversePermutations[symmetry][this.permutations[symmetry][position]] = position;
+            }
+        }
+
+        final Random random = new Random(0x5DEECE66DL ^ (long) size << 32 ^ winLength);
+        this.xKeys = new long[this.cells];
+        this.oKeys = new long[this.cells];
+        for (int position = 0; position < this.cells; position++) {
+            this.xKeys[position] = random.nextLong();
+            this.oKeys[position] = random.nextLong();
+        }
+        this.emptyHash = random.nextLong();
+
+        this.xThreatDeltas = new int[winLength + 1 << EvaluationWeights.LINE_INDEX_SHIFT];
+        this.oThreatDeltas = new int[winLength + 1 << EvaluationWeights.LINE_INDEX_SHIFT];
+        for (int xCount = 0; xCount < winLength; xCount++) {
+            for (int oCount = 0; oCount < winLength; oCount++) {
+                final int index = xCount << EvaluationWeights.LINE_INDEX_SHIFT | oCount;
+                final int threats = this.getThreats(xCount, oCount);
+                this.xThreatDeltas[index] = this.getThreats(xCount + 1, oCount) - threats;
+                this.oThreatDeltas[index] = this.getThreats(xCount, oCount + 1) - threats;
+            }
+        }
+    }
+
+    private int getThreats(final int xCount, final int oCount) {
+        if (oCount == 0 && xCount == this.winLength - 1) {
+            return 1;
+        }
+
+        return xCount == 0 && oCount == this.winLength - 1 ? Board.O_THREAT : 0;
+    }
+
+    static BoardGeometry of(final int size, final int winLength) {
+        return GEOMETRIES.computeIfAbsent((long) size << 32 | winLength, key -> new BoardGeometry(size, winLength));
+    }
+
+    private int[][] createLines() {
+        final List<int[]> lines = new ArrayList<>();
+        final int[][] directions = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+
+        for (final int[] direction : directions) {
+            for (int row = 0; row < this.size; row++) {
+                for (int column = 0; column < this.size; column++) {
+                    final int endRow = row + direction[0] * (this.winLength - 1);
+                    final int endColumn = column + direction[1] * (this.winLength - 1);
+
+                    if (endRow < 0 || endRow >= this.size || endColumn < 0 || endColumn >= this.size) {
+                        continue;
+                    }
+
+                    final int[] line = new int[this.winLength];
+                    for (int index = 0; index < this.winLength; index++) {
+                        line[index] = (row + direction[0] * index) * this.size + column + direction[1] * index;
+                    }
+                    lines.add(line);
+                }
+            }
+        }
+
+        return lines.toArray(new int[0][]);
+    }
+
+    private long[][] createNeighbourhoods() {
+        final long[][] neighbourhoods = new long[this.cells][this.words];
+
+        for (int position = 0; position < this.cells; position++) {
+            final int row = position / this.size;
+            final int column = position % this.size;
+
+            for (int i = Math.max(row - NEIGHBOURHOOD_RADIUS, 0); i <= Math.min(row + NEIGHBOURHOOD_RADIUS, this.size - 1); i++) {
+                for (int j = Math.max(column - NEIGHBOURHOOD_RADIUS, 0); j <= Math.min(column + NEIGHBOURHOOD_RADIUS, this.size - 1); j++) {
+                    final int neighbour = i * this.size + j;
+                    neighbourhoods[position][neighbour >>> 6] |= 1L << neighbour;
+                }
+            }
+        }
+
+        return neighbourhoods;
+    }
+
+    private int[][] createPermutations() {
+        final int[][] permutations = new int[SYMMETRIES][this.cells];
+        final int last = this.size - 1;
+
+        for (int position = 0; position < this.cells; position++) {
+            final int row = position / this.size;
+            final int column = position % this.size;
+            final int[][] transformed = {
+                    {row, column},
+                    {column, last - row},
+                    {last - row, last - column},
+                    {last - column, row},
+                    {row, last - column},
+                    {last - row, column},
+                    {column, row},
+                    {last - column, last - row}
+            };
+
+            for (int symmetry = 0; symmetry < SYMMETRIES; symmetry++) {
+                permutations[symmetry][position] = transformed[symmetry][0] * this.size + transformed[symmetry][1];
+            }
+        }
+
+        return permutations;
+    }
+}
+
+// One bitmask per side, bit n of word n / 64 is the cell at row n / size, column n % size.
+// Per-line piece counts are kept up to date by makeMove and unmakeMove, so checking for a win
+// only looks at counters instead of scanning the board
+final class Board {
+    static final int DEFAULT_SIZE = 3;
+    static final int MIN_SIZE = 3;
+    static final int MAX_SIZE = 19;
+    // One O threat in the packed threat counts
+    static final int O_THREAT = 1 << 16;
+
+    private final BoardGeometry geometry;
+    private final long[] xBits;
+    private final long[] oBits;
+    // Zobrist hash of the board seen through each of the 8 rotations and reflections
+    private final long[] hashes = new long[BoardGeometry.SYMMETRIES];
+    private final byte[] xLineCounts;
+    private final byte[] oLineCounts;
+    // Number of lines each side has filled completely
+    private int xCompletedLines;
+    private int oCompletedLines;
+    private int emptyCount;
+    private EvaluationWeights weights = EvaluationWeights.DEFAULT;
+    private int[] xScoreDeltas;
+    private int[] oScoreDeltas;
+    // Sum of the line scores from X's point of view, and the threat counts packed as in BoardGeometry
+    private int evaluation;
+    private int threats;
+
+    Board(final int size, final int winLength) {
+        this(BoardGeometry.of(size, winLength));
+    }
+
+    Board(final BoardGeometry geometry) {
+        this.geometry = geometry;
+        this.xBits = new long[geometry.words];
+        this.oBits = new long[geometry.words];
+        this.xLineCounts = new byte[geometry.lines.length];
+        this.oLineCounts = new byte[geometry.lines.length];
+        this.xScoreDeltas = this.weights.getXScoreDeltas(geometry.winLength);
+        this.oScoreDeltas = this.weights.getOScoreDeltas(geometry.winLength);
+        this.clear();
+    }
+
+    Board copy() {
+        final Board board = new Board(this.geometry);
+        System.arraycopy(this.xBits, 0, board.xBits, 0, this.geometry.words);
+        System.arraycopy(this.oBits, 0, board.oBits, 0, this.geometry.words);
+        board.copyFrom(this);
+        return board;
+    }
+
+    void copyFrom(final Board board) {
+        System.arraycopy(board.xBits, 0, this.xBits, 0, this.geometry.words);
+        System.arraycopy(board.oBits, 0, this.oBits, 0, this.geometry.words);
+        System.arraycopy(board.hashes, 0, this.hashes, 0, BoardGeometry.SYMMETRIES);
+        System.arraycopy(board.xLineCounts, 0, this.xLineCounts, 0, this.xLineCounts.length);
+        System.arraycopy(board.oLineCounts, 0, this.oLineCounts, 0, this.oLineCounts.length);
+        this.xCompletedLines = board.xCompletedLines;
+        this.oCompletedLines = board.oCompletedLines;
+        this.emptyCount = board.emptyCount;
+        this.threats = board.threats;
+
+        if (board.weights == this.weights) {
+            this.evaluation = board.evaluation;
+        } else {
+            this.recomputeEvaluation();
+        }
+    }
+
+    void setEvaluationWeights(final EvaluationWeights weights) {
+        this.weights = weights;
+        this.xScoreDeltas = weights.getXScoreDeltas(this.geometry.winLength);
+        this.oScoreDeltas = weights.getOScoreDeltas(this.geometry.winLength);
+        this.recomputeEvaluation();
+    }
+
+    // Scores every line from scratch, for when the weights change under the incremental evaluation
+    private void recomputeEvaluation() {
+        this.evaluation = 0;
+
+        for (int line = 0; line < this.geometry.lines.length; line++) {
+            this.evaluation += this.weights.getLineScore(this.geometry.winLength, this.xLineCounts[line], this.oLineCounts[line]);
+        }
+    }
+
+    // True when every piece of the earlier board is on this one too
+    boolean isReachableFrom(final Board earlier) {
+        for (int word = 0; word < this.geometry.words; word++) {
+            if ((earlier.xBits[word] & ~this.xBits[word]) != 0 || (earlier.oBits[word] & ~this.oBits[word]) != 0) {
+                return false;
+            }
+        }
+
+        return this.emptyCount <= earlier.emptyCount;
+    }
+
+    void clear() {
+        Arrays.fill(this.xBits, 0);
+        Arrays.fill(this.oBits, 0);
+        Arrays.fill(this.hashes, this.geometry.emptyHash);
+        Arrays.fill(this.xLineCounts, (byte) 0);
+        Arrays.fill(this.oLineCounts, (byte) 0);
+        this.xCompletedLines = 0;
+        this.oCompletedLines = 0;
+        this.emptyCount = this.geometry.cells;
+        this.evaluation = 0;
+        this.threats = 0;
+    }
+
+    BoardGeometry getGeometry() {
+        return this.geometry;
+    }
+
+    int getSize() {
+        return this.geometry.size;
+    }
+
+    int getWinLength() {
+        return this.geometry.winLength;
+    }
+
+    int getCells() {
+        return this.geometry.cells;
+    }
+
+    void makeMove(final int position, final char sign) {
+        final int winLength = this.geometry.winLength;
+        int completedLines = 0;
+        int evaluation = this.evaluation;
+        int threats = this.threats;
+
+        if (sign == 'X') {
+            this.xBits[position >>> 6] |= 1L << position;
+
+            for (final int line : this.geometry.cellLines[position]) {
+                final int index = this.xLineCounts[line] << EvaluationWeights.LINE_INDEX_SHIFT | this.oLineCounts[line];
+                evaluation += this.xScoreDeltas[index];
+                threats += this.geometry.xThreatDeltas[index];
+                if (++this.xLineCounts[line] == winLength) {
+                    completedLines++;
+                }
+            }
+            this.xCompletedLines += completedLines;
+        } else {
+            this.oBits[position >>> 6] |= 1L << position;
+
+            for (final int line : this.geometry.cellLines[position]) {
+                final int index = this.xLineCounts[line] << EvaluationWeights.LINE_INDEX_SHIFT | this.oLineCounts[line];
+                evaluation += this.oScoreDeltas[index];
+                threats += this.geometry.oThreatDeltas[index];
+                if (++this.oLineCounts[line] == winLength) {
+                    completedLines++;
+                }
+            }
+            this.oCompletedLines += completedLines;
+        }
+
+        this.evaluation = evaluation;
+        this.threats = threats;
+
+        this.emptyCount--;
+        this.toggleHashes(position, sign);
+    }
+
+    void unmakeMove(final int position) {
+        final int winLength = this.geometry.winLength;
+        final int word = position >>> 6;
+        final long bit = 1L << position;
+        int completedLines = 0;
+        int evaluation = this.evaluation;
+        int threats = this.threats;
+
+        if ((this.xBits[word] & bit) != 0) {
+            this.xBits[word] &= ~bit;
+
+            for (final int line : this.geometry.cellLines[position]) {
+                if (this.xLineCounts[line]-- == winLength) {
+                    completedLines++;
+                }
+                final int index = this.xLineCounts[line] << EvaluationWeights.LINE_INDEX_SHIFT | this.oLineCounts[line];
+                evaluation -= this.xScoreDeltas[index];
+                threats -= this.geometry.xThreatDeltas[index];
+            }
+            this.xCompletedLines -= completedLines;
+            this.toggleHashes(position, 'X');
+        } else if ((this.oBits[word] & bit) != 0) {
+            this.oBits[word] &= ~bit;
+
+            for (final int line : this.geometry.cellLines[position]) {
+                if (this.oLineCounts[line]-- == winLength) {
+                    completedLines++;
+                }
+                final int index = this.xLineCounts[line] << EvaluationWeights.LINE_INDEX_SHIFT | this.oLineCounts[line];
+                evaluation -= this.oScoreDeltas[index];
+                threats -= this.geometry.oThreatDeltas[index];
+            }
+            this.oCompletedLines -= completedLines;
+            this.toggleHashes(position, 'O');
+        } else {
+            return;
+        }
+
+        this.evaluation = evaluation;
+        this.threats = threats;
+        this.emptyCount++;
+    }
+
+    private void toggleHashes(final int position, final char sign) {
+        final long[] keys = sign == 'X' ? this.geometry.xKeys : this.geometry.oKeys;
+
+        for (int symmetry = 0; symmetry < BoardGeometry.SYMMETRIES; symmetry++) {
+            this.hashes[symmetry] ^= keys[this.geometry.permutations[symmetry][position]];
+        }
+    }
+
+    // Equal for every board that is a rotation or reflection of this one
+    long getCanonicalHash() {
+        return this.hashes[this.getCanonicalSymmetry()];
+    }
+
+    private int getCanonicalSymmetry() {
+        int canonical = 0;
+
+        for (int symmetry = 1; symmetry < BoardGeometry.SYMMETRIES; symmetry++) {
+            if (this.hashes[symmetry] < this.hashes[canonical]) {
+                canonical = symmetry;
+            }
+        }
+
+        return canonical;
+    }
+
+    // Moves are stored in the transposition table as seen on the canonical board
+    int toCanonical(final int position) {
+        return position < 0 ? position : this.geometry.permutations[this.getCanonicalSymmetry()][position];
+    }
+
+    int fromCanonical(final int position) {
+        return position < 0 ? position : this.geometry.inversePermutations[this.getCanonicalSymmetry()][position];
+    }
+
+    long[] getBits(final char sign) {
+        return sign == 'X' ? this.xBits : this.oBits;
+    }
+
+    int countEmpty() {
+        return this.emptyCount;
+    }
+
+    boolean isFull() {
+        return this.emptyCount == 0;
+    }
+
+    char getSignToMove() {
+        return (this.geometry.cells - this.emptyCount) % 2 == 0 ? 'X' : 'O';
+    }
+
+    boolean isEmptyAt(final int position) {
+        return ((this.xBits[position >>> 6] | this.oBits[position >>> 6]) & 1L << position) == 0;
+    }
+
+    boolean isEmpty(final int row, final int column) {
+        return this.isEmptyAt(row * this.geometry.size + column);
+    }
+
+    char getCell(final int row, final int column) {
+        final int position = row * this.geometry.size + column;
+        final long bit = 1L << position;
+
+        if ((this.xBits[position >>> 6] & bit) != 0) {
+            return 'X';
+        }
+
+        return (this.oBits[position >>> 6] & bit) != 0 ? 'O' : ' ';
+    }
+
+    int getPosition(final int[] coordinates) {
+        return (coordinates[0] - 1) * this.geometry.size + coordinates[1] - 1;
+    }
+
+    int[] getCoordinates(final int position) {
+        return new int[] {position / this.geometry.size + 1, position % this.geometry.size + 1};
+    }
+
+    int getEmptyPosition(final int index) {
+        int left = index;
+
+        for (int word = 0; word < this.geometry.words; word++) {
+            long emptyBits = this.geometry.fullMask[word] & ~(this.xBits[word] | this.oBits[word]);
+            final int count = Long.bitCount(emptyBits);
+
+            if (left >= count) {
+                left -= count;
+                continue;
+            }
+
+            for (; left > 0; left--) {
+                emptyBits &= emptyBits - 1;
+            }
+
+            return word << 6 | Long.numberOfTrailingZeros(emptyBits);
+        }
+
+        throw new IllegalArgumentException("There are only " + this.emptyCount + " empty cells");
+    }
+
+    // Inverse of getEmptyPosition: how many empty cells come before this one
+    int getEmptyIndex(final int position) {
+        final int lastWord = position >>> 6;
+        int index = 0;
+
+        for (int word = 0; word < lastWord; word++) {
+            index += Long.bitCount(this.geometry.fullMask[word] & ~(this.xBits[word] | this.oBits[word]));
+        }
+
+        return index + Long.bitCount(~(this.xBits[lastWord] | this.oBits[lastWord]) & (1L << position) - 1);
+    }
+
+    // Empty cells worth searching; on big boards only those near a piece, or the center of an empty board
+    void getCandidates(final long[] candidates) {
+        if (this.geometry.neighbourhoods == null) {
+            for (int word = 0; word < this.geometry.words; word++) {
+                candidates[word] = this.geometry.fullMask[word] & ~(this.xBits[word] | this.oBits[word]);
+            }
+            return;
+        }
+
+        Arrays.fill(candidates, 0);
+
+        if (this.emptyCount == this.geometry.cells) {
+            final int center = this.geometry.orderedCells[0];
+            candidates[center >>> 6] |= 1L << center;
+            return;
+        }
+
+        for (int word = 0; word < this.geometry.words; word++) {
+            for (long taken = this.xBits[word] | this.oBits[word]; taken != 0; taken &= taken - 1) {
+                final long[] neighbourhood = this.geometry.neighbourhoods[word << 6 | Long.numberOfTrailingZeros(taken)];
+
+                for (int other = 0; other < this.geometry.words; other++) {
+                    candidates[other] |= neighbourhood[other];
+                }
+            }
+        }
+
+        for (int word = 0; word < this.geometry.words; word++) {
+            candidates[word] &= ~(this.xBits[word] | this.oBits[word]);
+        }
+    }
+
+    int countInLine(final int line, final char sign) {
+        return sign == 'X' ? this.xLineCounts[line] : this.oLineCounts[line];
+    }
+
+    int countEmptyInLine(final int line) {
+        return this.geometry.winLength - this.xLineCounts[line] - this.oLineCounts[line];
+    }
+
+    int getEmptyInLine(final int line) {
+        for (final int position : this.geometry.lines[line]) {
+            if (this.isEmptyAt(position)) {
+                return position;
+            }
+        }
+
+        return -1;
+    }
+
+    // Static score for the side to move, kept up to date by makeMove and unmakeMove so it costs nothing to read
+    int evaluate(final char sign) {
+        final int xThreats = this.threats & O_THREAT - 1;
+        final int oThreats = this.threats >>> 16;
+        final int ownThreats = sign == 'X' ? xThreats : oThreats;
+        final int enemyThreats = sign == 'X' ? oThreats : xThreats;
+        int score = sign == 'X' ? this.evaluation : -this.evaluation;
+
+        if (ownThreats > 0) {
+            score += this.weights.fork;
+        } else if (enemyThreats > 1) {
+            score -= this.weights.fork;
+        }
+
+        return Math.max(-Search.WIN_THRESHOLD + 1, Math.min(Search.WIN_THRESHOLD - 1, score));
+    }
+
+    boolean isWin(final char sign) {
+        return (sign == 'X' ? this.xCompletedLines : this.oCompletedLines) > 0;
+    }
+
+    // Only lines through the last move can have been completed by it
+    boolean isWinThrough(final int position, final char sign) {
+        final byte[] lineCounts = sign == 'X' ? this.xLineCounts : this.oLineCounts;
+
+        for (final int line : this.geometry.cellLines[position]) {
+            if (lineCounts[line] == this.geometry.winLength) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
+
+// Weights of the static evaluation a depth-limited search falls back on. A line still open to one side is worth
+// piece * growth^(pieces - 1) to it, or threat once a single piece is missing. The side to move gets fork when it
+// can win straight away and loses it when the opponent has two wins it cannot both block.
+final class EvaluationWeights {
+    static final EvaluationWeights DEFAULT = new EvaluationWeights(1, 4, 500, 20_000);
+    // Line counts are packed into one index as xCount << LINE_INDEX_SHIFT | oCount
+    static final int LINE_INDEX_SHIFT = 5;
+
+    final int piece;
+    final int growth;
+    final int threat;
+    final int fork;
+    // For every win length, how much a line's score changes when X or O adds a piece to it
+    private final int[][] xScoreDeltas = new int[Board.MAX_SIZE + 1][];
+    private final int[][] oScoreDeltas = new int[Board.MAX_SIZE + 1][];
+
+    EvaluationWeights(final int piece, final int growth, final int threat, final int fork) {
+        if (piece < 0 || growth < 1 || threat < 0 || fork < 0 || threat + fork >= Search.WIN_THRESHOLD) {
+            throw new IllegalArgumentException("Evaluation weights should be non-negative and stay below a win");
+        }
+
+        this.piece = piece;
+        this.growth = growth;
+        this.threat = threat;
+        this.fork = fork;
+
+        for (int winLength = Board.MIN_SIZE; winLength <= Board.MAX_SIZE; winLength++) {
+            this.xScoreDeltas[winLength] = new int[winLength + 1 << LINE_INDEX_SHIFT];
+            this.oScoreDeltas[winLength] = new int[winLength + 1 << LINE_INDEX_SHIFT];
+
+            for (int xCount = 0; xCount < winLength; xCount++) {
+                for (int oCount = 0; oCount < winLength; oCount++) {
+                    final int index = xCount << LINE_INDEX_SHIFT | oCount;
+                    final int score = this.getLineScore(winLength, xCount, oCount);
+                    this.xScoreDeltas[winLength][index] = this.getLineScore(winLength, xCount + 1, oCount) - score;
+                    this.oScoreDeltas[winLength][index] = this.getLineScore(winLength, xCount, oCount + 1) - score;
+                }
+            }
+        }
+    }
+
+    // Comma separated piece, growth, threat and fork, as printed by toString
+    static EvaluationWeights parse(final String weights) {
+        final String[] parts = weights.split(",");
+
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Expected piece,growth,threat,fork weights but got " + weights);
+        }
+
+        return new EvaluationWeights(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+    }
+
+    // From X's point of view. Blocked and completed lines are worth nothing here: wins are scored by the search
+    int getLineScore(final int winLength, final int xCount, final int oCount) {
+        if (xCount > 0 && oCount > 0 || xCount == winLength || oCount == winLength) {
+            return 0;
+        }
+
+        final int count = xCount + oCount;
+        final int score;
+        if (count == 0) {
+            score = 0;
+        } else if (count == winLength - 1) {
+            score = this.threat;
+        } else {
+            long value = this.piece;
+            for (int power = 1; power < count && value < this.threat; power++) {
+                value *= this.growth;
+            }
+            score = (int) Math.min(value, this.threat);
+        }
+
+        return xCount > 0 ? score : -score;
+    }
+
+    int[] getXScoreDeltas(final int winLength) {
+        return this.xScoreDeltas[winLength];
+    }
+
+    int[] getOScoreDeltas(final int winLength) {
+        return this.oScoreDeltas[winLength];
+    }
+
+    @Override
+    public String toString() {
+        return this.piece + "," + this.growth + "," + this.threat + "," + this.fork;
+    }
+}
+
+// Lends transposition tables to searches, at most a fixed number at a time, so their memory stays bounded however
+// many sessions are open. A search finding none free waits for one, much as it would wait for a processor anyway.
+// Tables are made on first demand and cleared on their way back, as the next borrower may play another board.
+final class TranspositionTablePool {
+    private final int tableSize;
+    private final Semaphore permits;
+    private final Queue<TranspositionTable> free = new ConcurrentLinkedQueue<>();
+
+    TranspositionTablePool(final int tables, final int tableSize) {
+        this.tableSize = tableSize;
+        this.permits = new Semaphore(tables);
+    }
+
+    TranspositionTable acquire() {
+        this.permits.acquireUninterruptibly();
+        final TranspositionTable table = this.free.poll();
+        return table == null ? new TranspositionTable(this.tableSize, ReplacementPolicy.DEPTH_PREFERRED) : table;
+    }
+
+    void release(final TranspositionTable table) {
+        table.clear();
+        this.free.add(table);
+        this.permits.release();
+    }
+}
+
+enum ReplacementPolicy {
+    ALWAYS_REPLACE,
+    // Keeps the entry searched deeper unless it was stored during an earlier search
+    DEPTH_PREFERRED
+}
+
+enum Bound {
+    EXACT,
+    LOWER,
+    UPPER
+}
+
+// Fixed-size hash table of searched positions, indexed by the low bits of the canonical hash.
+// Each entry is packed into one long and stored next to the hash XOR-ed with it, so threads can share
+// the table without locks: an entry torn by a concurrent write no longer matches its hash and is ignored.
+final class TranspositionTable {
+    private static final Bound[] BOUNDS = Bound.values();
+    private static final int SCORE_OFFSET = 1 << 23;
+
+    private final long[] keys;
+    private final long[] entries;
+    private final int mask;
+    private final ReplacementPolicy policy;
+    private int generation = 1;
+
+    TranspositionTable(final int size, final ReplacementPolicy policy) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Transposition table size should be a power of two");
+        }
+
+        this.keys = new long[size];
+        this.entries = new long[size];
+        this.mask = size - 1;
+        this.policy = policy;
+    }
+
+    void nextGeneration() {
+        this.generation = (this.generation + 1) & 0xFFFF;
+    }
+
+    void clear() {
+        Arrays.fill(this.keys, 0);
+        Arrays.fill(this.entries, 0);
+    }
+
+    // Returns the packed entry for the hash, or 0 if there is none
+    long probe(final long hash) {
+        final int index = this.indexOf(hash);
+        final long entry = this.entries[index];
+
+        return entry != 0 && (this.keys[index] ^ entry) == hash ? entry : 0;
+    }
+
+    static int getScore(final long entry) {
+        return (int) (entry & 0xFFFFFF) - SCORE_OFFSET;
+    }
+
+    static Bound getBound(final long entry) {
+        return BOUNDS[(int) (entry >>> 24 & 0x3)];
+    }
+
+    static int getDepth(final long entry) {
+        return (int) (entry >>> 26 & 0x3FF);
+    }
+
+    static int getMove(final long entry) {
+        return (int) (entry >>> 36 & 0x7FF) - 1;
+    }
+
+    private static int getGeneration(final long entry) {
+        return (int) (entry >>> 47 & 0xFFFF);
+    }
+
+    void store(final long hash, final int score, final Bound bound, final int depth, final int move) {
+        final int index = this.indexOf(hash);
+        final long current = this.entries[index];
+
+        if (this.policy == ReplacementPolicy.DEPTH_PREFERRED
+                && current != 0
+                && getGeneration(current) == this.generation
+                && (this.keys[index] ^ current) != hash
+                && getDepth(current) > depth) {
+            return;
+        }
+
+        final long entry = 1L << 63
+                | (long) this.generation << 47
+                | (long) (move + 1) << 36
+                | (long) depth << 26
+                | (long) bound.ordinal() << 24
+                | score + SCORE_OFFSET;
+
+        this.keys[index] = hash ^ entry;
+        this.entries[index] = entry;
+    }
+
+    private int indexOf(final long hash) {
+        return (int) (hash ^ hash >>> 32) & this.mask;
+    }
+}
+
+// Best move, MEDIUM answer and game value for every 3x3 position, indexed by the position read as a
+// base 3 number with one digit per cell: 0 for empty, 1 for X and 2 for O
+final class PerfectPlayDatabase {
+    static final String DEFAULT_PATH = "tictactoe.db";
+
+    private static final int MAGIC = 0x54545431;
+    private static final int SIZE = 3;
+    private static final int CELLS = SIZE * SIZE;
+    private static final int STATES = 19_683;
+    private static final int HEADER_BYTES = 8;
+    private static final int NO_MOVE = 0xF;
+    private static final int[] BASE3 = createBase3();
+    private static final long SOLVE_TIME_BUDGET = 24 * 60 * 60 * 1000L;
+
+    static final int LOSS = 0;
+    static final int DRAW = 1;
+    static final int WIN = 2;
+
+    private final ByteBuffer entries;
+
+    private PerfectPlayDatabase(final ByteBuffer entries) {
+        this.entries = entries;
+    }
+
+    // Value of every 9-bit mask read as a base 3 number with a 1 for every set bit
+    private static int[] createBase3() {
+        final int[] base3 = new int[1 << CELLS];
+
+        for (int mask = 0; mask < base3.length; mask++) {
+            int power = 1;
+
+            for (int position = 0; position < CELLS; position++) {
+                if ((mask & 1 << position) != 0) {
+                    base3[mask] += power;
+                }
+                power *= 3;
+            }
+        }
+
+        return base3;
+    }
+
+    static PerfectPlayDatabase load(final Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() != HEADER_BYTES + 2L * STATES) {
+                throw new IOException(path + " is not a perfect play database");
+            }
+
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != STATES) {
+                throw new IOException(path + " is not a perfect play database");
+            }
+
+            return new PerfectPlayDatabase(buffer.position(HEADER_BYTES).slice());
+        }
+    }
+
+    // Solves every position reachable from the empty board; best moves come from the HARD search itself
+    static void generate(final Path path) throws IOException {
+        final short[] entries = new short[STATES];
+        final AI ai = new AI(new TranspositionTable(1 << 16, ReplacementPolicy.DEPTH_PREFERRED), SOLVE_TIME_BUDGET, 1, null);
+        final boolean[] solved = new boolean[STATES];
+        solve(new Board(SIZE, SIZE), ai, entries, solved);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 2 * STATES);
+        buffer.putInt(MAGIC).putInt(STATES);
+        for (final short entry : entries) {
+            buffer.putShort(entry);
+        }
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static int solve(final Board board, final AI ai, final short[] entries, final boolean[] solved) {
+        final int index = indexOf(board);
+
+        if (solved[index]) {
+            return entries[index] >>> 8 & 0x3;
+        }
+
+        final char sign = board.getSignToMove();
+        int value;
+        int bestMove = NO_MOVE;
+        int mediumMove = NO_MOVE;
+
+        if (board.isWin(sign == 'X' ? 'O' : 'X')) {
+            value = LOSS;
+        } else if (board.isFull()) {
+            value = DRAW;
+        } else {
+            value = LOSS;
+
+            for (int position = 0; position < CELLS; position++) {
+                if (board.isEmptyAt(position)) {
+                    board.makeMove(position, sign);
+                    value = Math.max(value, WIN - solve(board, ai, entries, solved));
+                    board.unmakeMove(position);
+                }
+            }
+
+            bestMove = board.getPosition(ai.getCoordinates(board, sign, Player.HARD));
+            final int[] mediumCoordinates = ai.getWinningMoveCoordinates(board, sign);
+            mediumMove = mediumCoordinates == null ? NO_MOVE : board.getPosition(mediumCoordinates);
+        }
+
+        entries[index] = (short) (value << 8 | mediumMove << 4 | bestMove);
+        solved[index] = true;
+
+        return value;
+    }
+
+    private static int indexOf(final Board board) {
+        return BASE3[(int) board.getBits('X')[0]] + 2 * BASE3[(int) board.getBits('O')[0]];
+    }
+
+    boolean covers(final Board board) {
+        return board.getSize() == SIZE && board.getWinLength() == SIZE;
+    }
+
+    private int getEntry(final Board board) {
+        return this.entries.getShort(2 * indexOf(board));
+    }
+
+    int getBestMove(final Board board) {
+        final int move = this.getEntry(board) & 0xF;
+        return move == NO_MOVE ? -1 : move;
+    }
+
+    // The cell MEDIUM plays to win or block, or -1 when it would play a random one
+    int getMediumMove(final Board board) {
+        final int move = this.getEntry(board) >>> 4 & 0xF;
+        return move == NO_MOVE ? -1 : move;
+    }
+
+    // LOSS, DRAW or WIN for the side to move
+    int getValue(final Board board) {
+        return this.getEntry(board) >>> 8 & 0x3;
+    }
+}
+
+// Numbers every position with a given number of pieces, X having moved first, from 0 to getLayerSize - 1:
+// the colex rank of the occupied cells times the number of ways to pick X's cells among them, plus the
+// colex rank of X's cells counted along the occupied ones. Boards of up to 25 cells fit in an int mask.
+final class PieceCountIndex {
+    static final int MAX_CELLS = 25;
+
+    final BoardGeometry geometry;
+    final int cells;
+    final int[] lineMasks;
+    // binomials[n][k] is n choose k, 0 when k > n
+    private final long[][] binomials;
+
+    PieceCountIndex(final BoardGeometry geometry) {
+        if (geometry.cells > MAX_CELLS) {
+            throw new IllegalArgumentException("Only boards of up to " + MAX_CELLS + " cells can be indexed by piece count");
+        }
+
+        this.geometry = geometry;
+        this.cells = geometry.cells;
+        this.lineMasks = new int[geometry.lines.length];
+        for (int line = 0; line < geometry.lines.length; line++) {
+            for (final int position : geometry.lines[line]) {
+                this.lineMasks[line] |= 1 << position;
+            }
+        }
+
+        this.binomials = new long[this.cells + 2][this.cells + 2];
+        for (int n = 0; n < this.binomials.length; n++) {
+            this.binomials[n][0] = 1;
+            for (int k = 1; k <= n; k++) {
+                this.binomials[n][k] = this.binomials[n - 1][k - 1] + (k < n ? this.binomials[n - 1][k] : 0);
+            }
+        }
+    }
+
+    long choose(final int n, final int k) {
+        return this.binomials[n][k];
+    }
+
+    static int countX(final int pieces) {
+        return (pieces + 1) / 2;
+    }
+
+    long getLayerSize(final int pieces) {
+        return this.choose(this.cells, pieces) * this.choose(pieces, countX(pieces));
+    }
+
+    boolean hasLine(final int mask) {
+        for (final int lineMask : this.lineMasks) {
+            if ((mask & lineMask) == lineMask) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    long indexOf(final int xMask, final int oMask) {
+        final int occupied = xMask | oMask;
+        final int pieces = Integer.bitCount(occupied);
+        long occupiedRank = 0;
+        long xRank = 0;
+        int order = 0;
+        int xCount = 0;
+
+        for (int position = 0; position < this.cells; position++) {
+            if ((occupied & 1 << position) == 0) {
+                continue;
+            }
+
+            occupiedRank += this.choose(position, ++order);
+            if ((xMask & 1 << position) != 0) {
+                xRank += this.choose(order - 1, ++xCount);
+            }
+        }
+
+        return occupiedRank * this.choose(pieces, countX(pieces)) + xRank;
+    }
+
+    // Fills masks with the X and O masks of the position with this index
+    void unrank(final int pieces, final long index, final int[] masks) {
+        final int xCount = countX(pieces);
+        final long xWays = this.choose(pieces, xCount);
+        long occupiedRank = index / xWays;
+        long xRank = index % xWays;
+        final int[] occupied = new int[pieces];
+        int value = this.cells - 1;
+
+        for (int order = pieces; order > 0; order--) {
+            while (this.choose(value, order) > occupiedRank) {
+                value--;
+            }
+            occupied[order - 1] = value;
+            occupiedRank -= this.choose(value, order);
+            value--;
+        }
+
+        int xMask = 0;
+        value = pieces - 1;
+        for (int order = xCount; order > 0; order--) {
+            while (this.choose(value, order) > xRank) {
+                value--;
+            }
+            xMask |= 1 << occupied[value];
+            xRank -= this.choose(value, order);
+            value--;
+        }
+
+        int occupiedMask = 0;
+        for (final int position : occupied) {
+            occupiedMask |= 1 << position;
+        }
+
+        masks[0] = xMask;
+        masks[1] = occupiedMask & ~xMask;
+    }
+}
+
+// Two bits per position, four to a byte, mapped a gigabyte at a time so layers of any size fit
+final class LayerFile {
+    private static final int WINDOW_SHIFT = 30;
+    private static final long WINDOW_BYTES = 1L << WINDOW_SHIFT;
+
+    private final MappedByteBuffer[] windows;
+
+    private LayerFile(final MappedByteBuffer[] windows) {
+        this.windows = windows;
+    }
+
+    static LayerFile open(final Path path, final long entries, final boolean writable) throws IOException {
+        final long bytes = (entries + 3) / 4;
+        final MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((bytes + WINDOW_BYTES - 1) / WINDOW_BYTES)];
+
+        try (FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ)) {
+            if (!writable && channel.size() != bytes) {
+                throw new IOException(path + " does not hold " + entries + " positions");
+            }
+
+            for (int window = 0; window < windows.length; window++) {
+                final long start = window * WINDOW_BYTES;
+                windows[window] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                        start, Math.min(WINDOW_BYTES, bytes - start));
+            }
+        }
+
+        return new LayerFile(windows);
+    }
+
+    int get(final long index) {
+        final long byteIndex = index >>> 2;
+        final int value = this.windows[(int) (byteIndex >>> WINDOW_SHIFT)].get((int) (byteIndex & WINDOW_BYTES - 1));
+        return value >>> ((int) (index & 3) << 1) & 0x3;
+    }
+
+    // Callers writing from several threads must own whole bytes, that is runs of four positions
+    void set(final long index, final int value) {
+        final long byteIndex = index >>> 2;
+        final MappedByteBuffer window = this.windows[(int) (byteIndex >>> WINDOW_SHIFT)];
+        final int offset = (int) (byteIndex & WINDOW_BYTES - 1);
+        final int shift = (int) (index & 3) << 1;
+        window.put(offset, (byte) (window.get(offset) & ~(0x3 << shift) | value << shift));
+    }
+
+    void force() {
+        for (final MappedByteBuffer window : this.windows) {
+            window.force();
+        }
+    }
+
+    // Java cannot unmap a buffer on demand: dropping the windows lets the collector unmap them once they are freed
+    void close() {
+        Arrays.fill(this.windows, null);
+    }
+}
+
+// Solves every position of a board, one piece count at a time from the full board back to the empty one.
+// Only the layer being written and the one after it are in use. Older layers are dropped as the solver moves
+// on, but their mappings are only released when the collector frees them. Progress is saved after every batch,
+// so the solver can be stopped at any point and picks up where it left off.
+final class RetrogradeSolver {
+    static final String DEFAULT_DIRECTORY = "retrograde";
+    static final String PROGRESS_FILE = "progress";
+
+    private static final long BATCH_ENTRIES = 1L << 24;
+    private static final int TASK_ENTRIES = 1 << 16;
+
+    private final PieceCountIndex index;
+    private final Path directory;
+    private final ForkJoinPool pool;
+
+    RetrogradeSolver(final int size, final int winLength, final Path root, final int parallelism) {
+        this.index = new PieceCountIndex(BoardGeometry.of(size, winLength));
+        this.directory = root.resolve(getDirectoryName(size, winLength));
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    static String getDirectoryName(final int size, final int winLength) {
+        return size + "x" + size + "-" + winLength;
+    }
+
+    static Path getLayerPath(final Path directory, final int pieces) {
+        return directory.resolve(String.format("layer-%02d.bin", pieces));
+    }
+
+    // Returns the next layer to solve and how many of its positions are done; layer -1 means finished
+    static long[] readProgress(final Path directory, final int cells) throws IOException {
+        final Path path = directory.resolve(PROGRESS_FILE);
+
+        if (!Files.exists(path)) {
+            return new long[] {cells, 0};
+        }
+
+        final ByteBuffer progress = ByteBuffer.wrap(Files.readAllBytes(path));
+        return new long[] {progress.getInt(), progress.getLong()};
+    }
+
+    private void writeProgress(final int pieces, final long done) throws IOException {
+        final Path temporary = this.directory.resolve(PROGRESS_FILE + ".tmp");
+        Files.write(temporary, ByteBuffer.allocate(12).putInt(pieces).putLong(done).array());
+        Files.move(temporary, this.directory.resolve(PROGRESS_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    void solve() throws IOException {
+        Files.createDirectories(this.directory);
+        final long[] progress = readProgress(this.directory, this.index.cells);
+
+        try {
+            for (int pieces = (int) progress[0]; pieces >= 0; pieces--) {
+                final long start = System.nanoTime();
+                final long size = this.index.getLayerSize(pieces);
+                final LayerFile layer = LayerFile.open(getLayerPath(this.directory, pieces), size, true);
+                final LayerFile next = pieces == this.index.cells
+                        ? null
+                        : LayerFile.open(getLayerPath(this.directory, pieces + 1), this.index.getLayerSize(pieces + 1), false);
+                long done = pieces == progress[0] ? progress[1] : 0;
+
+                try {
+                    while (done < size) {
+                        final long batchEnd = Math.min(done + BATCH_ENTRIES, size);
+                        this.pool.invoke(new BatchTask(pieces, layer, next, done, batchEnd));
+                        layer.force();
+                        done = batchEnd;
+                        this.writeProgress(pieces, done);
+                    }
+                } finally {
+                    layer.close();
+                    if (next != null) {
+                        next.close();
+                    }
+                }
+
+                this.writeProgress(pieces - 1, 0);
+                System.out.printf("Layer %d: %d positions in %.1f s%n", pieces, size, (System.nanoTime() - start) / 1e9);
+            }
+        } finally {
+            this.pool.shutdown();
+        }
+    }
+
+    // Splits a batch in halves down to TASK_ENTRIES, keeping every boundary on a multiple of four positions
+    @SuppressWarnings("serial")
+    private final class BatchTask extends RecursiveAction {
+        private final int pieces;
+        private final LayerFile layer;
+        private final LayerFile next;
+        private final long from;
+        private final long to;
+
+        BatchTask(final int pieces, final LayerFile layer, final LayerFile next, final long from, final long to) {
+            this.pieces = pieces;
+            this.layer = layer;
+            this.next = next;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= TASK_ENTRIES) {
+                RetrogradeSolver.this.solveRange(this.pieces, this.layer, this.next, this.from, this.to);
+                return;
+            }
+
+            final long middle = this.from + ((this.to - this.from) / 2 & ~3L);
+            invokeAll(new BatchTask(this.pieces, this.layer, this.next, this.from, middle),
+                    new BatchTask(this.pieces, this.layer, this.next, middle, this.to));
+        }
+    }
+
+    // Values are LOSS, DRAW or WIN for the side to move, as in PerfectPlayDatabase
+    private void solveRange(final int pieces, final LayerFile layer, final LayerFile next, final long from, final long to) {
+        final PieceCountIndex index = this.index;
+        final int cells = index.cells;
+        final boolean xToMove = pieces % 2 == 0;
+        final int xCount = PieceCountIndex.countX(pieces);
+        final long childWays = pieces == cells ? 0 : index.choose(pieces + 1, PieceCountIndex.countX(pieces + 1));
+        final int[] masks = new int[2];
+        // Partial sums of the child rank, see the comment on the loop over empty cells
+        final long[] lowOccupied = new long[pieces + 1];
+        final long[] highOccupied = new long[pieces + 1];
+        final long[] lowX = new long[xCount + 1];
+        final long[] highXWithX = new long[xCount + 1];
+        final long[] highXWithO = new long[xCount + 1];
+        final int[] occupied = new int[pieces];
+        final int[] xOrders = new int[xCount];
+
+        for (long position = from; position < to; position++) {
+            index.unrank(pieces, position, masks);
+            final int xMask = masks[0];
+            final int oMask = masks[1];
+
+            if (index.hasLine(xToMove ? oMask : xMask)) {
+                layer.set(position, PerfectPlayDatabase.LOSS);
+                continue;
+            }
+
+            if (pieces == cells) {
+                layer.set(position, PerfectPlayDatabase.DRAW);
+                continue;
+            }
+
+            int order = 0;
+            int xOrder = 0;
+            for (int cell = 0; cell < cells; cell++) {
+                if (((xMask | oMask) & 1 << cell) != 0) {
+                    if ((xMask & 1 << cell) != 0) {
+                        xOrders[xOrder++] = order;
+                    }
+                    occupied[order++] = cell;
+                }
+            }
+
+            lowOccupied[0] = 0;
+            for (int place = 0; place < pieces; place++) {
+                lowOccupied[place + 1] = lowOccupied[place] + index.choose(occupied[place], place + 1);
+            }
+            highOccupied[pieces] = 0;
+            for (int place = pieces - 1; place >= 0; place--) {
+                highOccupied[place] = highOccupied[place + 1] + index.choose(occupied[place], place + 2);
+            }
+            lowX[0] = 0;
+            for (int rank = 0; rank < xCount; rank++) {
+                lowX[rank + 1] = lowX[rank] + index.choose(xOrders[rank], rank + 1);
+            }
+            highXWithX[xCount] = 0;
+            highXWithO[xCount] = 0;
+            for (int rank = xCount - 1; rank >= 0; rank--) {
+                highXWithX[rank] = highXWithX[rank + 1] + index.choose(xOrders[rank] + 1, rank + 2);
+                highXWithO[rank] = highXWithO[rank + 1] + index.choose(xOrders[rank] + 1, rank + 1);
+            }
+
+            // A piece on an empty cell with `below` occupied cells before it takes that place in the order,
+            // and everything after it moves up by one, so each child's rank is a sum of precomputed parts
+            int value = PerfectPlayDatabase.LOSS;
+            int below = 0;
+            int xBelow = 0;
+
+            for (int cell = 0; cell < cells && value != PerfectPlayDatabase.WIN; cell++) {
+                if (((xMask | oMask) & 1 << cell) != 0) {
+                    if ((xMask & 1 << cell) != 0) {
+                        xBelow++;
+                    }
+                    below++;
+                    continue;
+                }
+
+                final long occupiedRank = lowOccupied[below] + index.choose(cell, below + 1) + highOccupied[below];
+                final long xRank = xToMove
+                        ? lowX[xBelow] + index.choose(below, xBelow + 1) + highXWithX[xBelow]
+                        : lowX[xBelow] + highXWithO[xBelow];
+                value = Math.max(value, PerfectPlayDatabase.WIN - next.get(occupiedRank * childWays + xRank));
+            }
+
+            layer.set(position, value);
+        }
+    }
+}
+
+// Perfect play on every board a RetrogradeSolver has finished, read straight from its layer files
+final class RetrogradeDatabase {
+    private final Map<BoardGeometry, PieceCountIndex> indexes = new HashMap<>();
+    private final Map<BoardGeometry, LayerFile[]> layers = new HashMap<>();
+
+    private RetrogradeDatabase() {
+    }
+
+    // Picks up every finished solve under the root directory
+    static RetrogradeDatabase load(final Path root) throws IOException {
+        final RetrogradeDatabase database = new RetrogradeDatabase();
+
+        for (int size = Board.MIN_SIZE; size * size <= PieceCountIndex.MAX_CELLS; size++) {
+            for (int winLength = Board.MIN_SIZE; winLength <= size; winLength++) {
+                final Path directory = root.resolve(RetrogradeSolver.getDirectoryName(size, winLength));
+
+                if (!Files.isDirectory(directory) || RetrogradeSolver.readProgress(directory, size * size)[0] != -1) {
+                    continue;
+                }
+
+                final PieceCountIndex index = new PieceCountIndex(BoardGeometry.of(size, winLength));
+                final LayerFile[] files = new LayerFile[index.cells + 1];
+                for (int pieces = 0; pieces <= index.cells; pieces++) {
+                    files[pieces] = LayerFile.open(RetrogradeSolver.getLayerPath(directory, pieces), index.getLayerSize(pieces), false);
+                }
+
+                database.indexes.put(index.geometry, index);
+                database.layers.put(index.geometry, files);
+            }
+        }
+
+        return database;
+    }
+
+    boolean covers(final Board board) {
+        return this.layers.containsKey(board.getGeometry());
+    }
+
+    // LOSS, DRAW or WIN for the side to move
+    int getValue(final Board board) {
+        return this.getValue(board.getGeometry(), (int) board.getBits('X')[0], (int) board.getBits('O')[0]);
+    }
+
+    private int getValue(final BoardGeometry geometry, final int xMask, final int oMask) {
+        return this.layers.get(geometry)[Integer.bitCount(xMask | oMask)].get(this.indexes.get(geometry).indexOf(xMask, oMask));
+    }
+
+    // A winning move if there is one, then a drawing one. Immediate wins come first, and when every move
+    // loses, one that blocks an immediate loss. Otherwise the cell with the most lines through it.
+    int getBestMove(final Board board) {
+        final BoardGeometry geometry = board.getGeometry();
+        final PieceCountIndex index = this.indexes.get(geometry);
+        final char sign = board.getSignToMove();
+        final int xMask = (int) board.getBits('X')[0];
+        final int oMask = (int) board.getBits('O')[0];
+        final int enemyMask = sign == 'X' ? oMask : xMask;
+        int bestMove = -1;
+        int bestScore = -1;
+
+        for (final int position : geometry.orderedCells) {
+            if (!board.isEmptyAt(position)) {
+                continue;
+            }
+
+            final int childX = sign == 'X' ? xMask | 1 << position : xMask;
+            final int childO = sign == 'X' ? oMask : oMask | 1 << position;
+            if (index.hasLine(sign == 'X' ? childX : childO)) {
+                return position;
+            }
+
+            final int value = PerfectPlayDatabase.WIN - this.getValue(geometry, childX, childO);
+            final int score = value * 2 + (index.hasLine(enemyMask | 1 << position) ? 1 : 0);
+
+            if (score > bestScore) {
+                bestScore = score;
+                bestMove = position;
+            }
+        }
+
+        return bestMove;
+    }
+}
+
+// Append-only log of finished games. After an 8 byte header every game is one frame:
+// payload length (2 bytes), payload, CRC32C of the payload (4 bytes). The payload holds the X and O players
+// (a nibble each), the outcome and board size, the win length and number of moves, then the moves themselves,
+// each stored as its index among the cells still empty, in as few bits as that count needs.
+final class GameLog implements Closeable {
+    static final String DEFAULT_PATH = "games.log";
+
+    private static final int MAGIC = 0x5454544C;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int FRAME_OVERHEAD = 2 + 4;
+    private static final int PAYLOAD_HEADER_BYTES = 4;
+    private static final int MAX_PAYLOAD = PAYLOAD_HEADER_BYTES + (Board.MAX_SIZE * Board.MAX_SIZE * 9 + 7) / 8;
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+    private static final long MAP_CHUNK_BYTES = 1L << 30;
+    private static final TicTacToeState[] OUTCOMES = {TicTacToeState.DRAW, TicTacToeState.X_WON, TicTacToeState.Y_WON};
+
+    private final FileChannel channel;
+
+    private GameLog(final FileChannel channel) {
+        this.channel = channel;
+    }
+
+    // Creates the log or appends to an existing one, first cutting off a frame torn by a crash
+    static GameLog open(final Path path) throws IOException {
+        if (Files.exists(path) && Files.size(path) > 0) {
+            final Reader reader = new Reader();
+            reader.scan(path, null, null, null, record -> { });
+
+            if (reader.getBytes() < Files.size(path)) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(reader.getBytes());
+                }
+            }
+        }
+
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        if (channel.size() == 0) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+
+        return new GameLog(channel);
+    }
+
+    // Writers are not thread safe; give every thread its own. Each flush appends whole frames only.
+    Writer newWriter() {
+        return new Writer(this.channel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private static int bitsFor(final int choices) {
+        return 32 - Integer.numberOfLeadingZeros(choices - 1);
+    }
+
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+        private final CRC32C crc = new CRC32C();
+        private Board board;
+
+        private Writer(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // Moves are the positions played, in order, starting with X
+        void write(final Player xPlayer, final Player oPlayer, final TicTacToeState outcome, final BoardGeometry geometry,
+                   final int[] moves, final int count) throws IOException {
+            if (this.buffer.remaining() < FRAME_OVERHEAD + MAX_PAYLOAD) {
+                this.flush();
+            }
+
+            if (this.board == null || this.board.getGeometry() != geometry) {
+                this.board = new Board(geometry);
+            } else {
+                this.board.clear();
+            }
+
+            final int frameStart = this.buffer.position();
+            final int payloadStart = frameStart + 2;
+            this.buffer.position(payloadStart);
+            this.buffer.put((byte) (xPlayer.ordinal() << 4 | oPlayer.ordinal()));
+            this.buffer.put((byte) ((outcome.ordinal() - TicTacToeState.DRAW.ordinal()) << 5 | geometry.size));
+            this.buffer.putShort((short) (geometry.winLength << 9 | count));
+
+            long bits = 0;
+            int bitCount = 0;
+
+            for (int index = 0; index < count; index++) {
+                final int width = bitsFor(this.board.countEmpty());
+                bits |= (long) this.board.getEmptyIndex(moves[index]) << bitCount;
+                bitCount += width;
+                this.board.makeMove(moves[index], index % 2 == 0 ? 'X' : 'O');
+
+                for (; bitCount >= 8; bitCount -= 8, bits >>>= 8) {
+                    this.buffer.put((byte) bits);
+                }
+            }
+
+            if (bitCount > 0) {
+                this.buffer.put((byte) bits);
+            }
+
+            final int payloadEnd = this.buffer.position();
+            this.buffer.putShort(frameStart, (short) (payloadEnd - payloadStart));
+            this.crc.reset();
+            this.crc.update(this.buffer.duplicate().position(payloadStart).limit(payloadEnd));
+            this.buffer.putInt((int) this.crc.getValue());
+        }
+
+        void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flush();
+        }
+    }
+
+    // Handed to the reader's consumer; only valid during that call
+    static final class GameRecord {
+        private ByteBuffer buffer;
+        private int movesStart;
+        private Player xPlayer;
+        private Player oPlayer;
+        private TicTacToeState outcome;
+        private int size;
+        private int winLength;
+        private int moveCount;
+        private Board board;
+
+        Player getXPlayer() {
+            return this.xPlayer;
+        }
+
+        Player getOPlayer() {
+            return this.oPlayer;
+        }
+
+        TicTacToeState getOutcome() {
+            return this.outcome;
+        }
+
+        int getSize() {
+            return this.size;
+        }
+
+        int getWinLength() {
+            return this.winLength;
+        }
+
+        int getMoveCount() {
+            return this.moveCount;
+        }
+
+        // Decodes the positions played into the array and returns how many there are
+        int getMoves(final int[] moves) {
+            final BoardGeometry geometry = BoardGeometry.of(this.size, this.winLength);
+            if (this.board == null || this.board.getGeometry() != geometry) {
+                this.board = new Board(geometry);
+            } else {
+                this.board.clear();
+            }
+
+            int offset = this.movesStart;
+            long bits = 0;
+            int bitCount = 0;
+
+            for (int index = 0; index < this.moveCount; index++) {
+                final int width = bitsFor(this.board.countEmpty());
+
+                for (; bitCount < width; bitCount += 8) {
+                    bits |= (long) (this.buffer.get(offset++) & 0xFF) << bitCount;
+                }
+
+                moves[index] = this.board.getEmptyPosition((int) (bits & (1L << width) - 1));
+                bits >>>= width;
+                bitCount -= width;
+                this.board.makeMove(moves[index], index % 2 == 0 ? 'X' : 'O');
+            }
+
+            return this.moveCount;
+        }
+    }
+
+    // Maps the log a gigabyte at a time and hands over every intact record that passes the filter.
+    // A null filter value matches anything. A torn frame at the end, left by a crash, ends the scan.
+    static final class Reader {
+        private long scanned;
+        private long matched;
+        private long corrupted;
+        private long bytes;
+
+        void scan(final Path path, final Player xPlayer, final Player oPlayer, final TicTacToeState outcome,
+                  final Consumer<GameRecord> consumer) throws IOException {
+            final Player[] players = Player.values();
+            final GameRecord record = new GameRecord();
+            final CRC32C crc = new CRC32C();
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                channel.read(header, 0);
+
+                if (size < HEADER_BYTES || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new IOException(path + " is not a game log");
+                }
+
+                long offset = HEADER_BYTES;
+
+                while (offset < size) {
+                    final ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_CHUNK_BYTES, size - offset));
+                    int position = 0;
+
+                    while (chunk.limit() - position >= 2) {
+                        final int length = chunk.getShort(position) & 0xFFFF;
+
+                        if (length < PAYLOAD_HEADER_BYTES || length > MAX_PAYLOAD) {
+                            // Framing is lost, nothing after this point can be trusted
+                            this.corrupted++;
+                            this.bytes = offset + position;
+                            return;
+                        }
+
+                        if (chunk.limit() - position < FRAME_OVERHEAD + length) {
+                            break;
+                        }
+
+                        final int payloadStart = position + 2;
+                        final int payloadEnd = payloadStart + length;
+                        position = payloadEnd + 4;
+                        this.scanned++;
+
+                        crc.reset();
+                        crc.update(chunk.limit(payloadEnd).position(payloadStart));
+                        chunk.limit(chunk.capacity());
+                        if ((int) crc.getValue() != chunk.getInt(payloadEnd)) {
+                            this.corrupted++;
+                            continue;
+                        }
+
+                        final int pairing = chunk.get(payloadStart) & 0xFF;
+                        final int outcomeAndSize = chunk.get(payloadStart + 1) & 0xFF;
+                        final int outcomeIndex = outcomeAndSize >>> 5;
+                        if (pairing >>> 4 >= players.length || (pairing & 0xF) >= players.length || outcomeIndex >= OUTCOMES.length) {
+                            this.corrupted++;
+                            continue;
+                        }
+
+                        record.xPlayer = players[pairing >>> 4];
+                        record.oPlayer = players[pairing & 0xF];
+                        record.outcome = OUTCOMES[outcomeIndex];
+
+                        if (xPlayer != null && record.xPlayer != xPlayer || oPlayer != null && record.oPlayer != oPlayer
+                                || outcome != null && record.outcome != outcome) {
+                            continue;
+                        }
+
+                        final int winLengthAndCount = chunk.getShort(payloadStart + 2) & 0xFFFF;
+                        record.buffer = chunk;
+                        record.movesStart = payloadStart + PAYLOAD_HEADER_BYTES;
+                        record.size = outcomeAndSize & 0x1F;
+                        record.winLength = winLengthAndCount >>> 9;
+                        record.moveCount = winLengthAndCount & 0x1FF;
+                        this.matched++;
+                        consumer.accept(record);
+                    }
+
+                    if (position == 0) {
+                        break;
+                    }
+                    offset += position;
+                }
+
+                this.bytes = offset;
+            }
+        }
+
+        long getScanned() {
+            return this.scanned;
+        }
+
+        long getMatched() {
+            return this.matched;
+        }
+
+        long getCorrupted() {
+            return this.corrupted;
+        }
+
+        // How far into the file the last intact frame ends
+        long getBytes() {
+            return this.bytes;
+        }
+    }
+}
+
+// Plays every pairing of the AI levels against each other without any console input or output
+final class Tournament {
+    private static final Player[] LEVELS = {Player.EASY, Player.MEDIUM, Player.HARD};
+
+    private final int size;
+    private final int winLength;
+    private final long gamesPerPairing;
+    private final int workers;
+    private final long seed;
+    private final long timeBudget;
+    private final PerfectPlayDatabase database;
+    private final RetrogradeDatabase endgames;
+    private final EvaluationWeights weights;
+    private final GameLog log;
+
+    Tournament(final int size, final int winLength, final long gamesPerPairing, final int workers, final long seed, final long timeBudget,
+               final PerfectPlayDatabase database, final RetrogradeDatabase endgames, final EvaluationWeights weights, final GameLog log) {
+        this.size = size;
+        this.winLength = winLength;
+        this.gamesPerPairing = gamesPerPairing;
+        this.workers = workers;
+        this.seed = seed;
+        this.timeBudget = timeBudget;
+        this.database = database;
+        this.endgames = endgames;
+        this.weights = weights;
+        this.log = log;
+    }
+
+    void run() throws InterruptedException, ExecutionException {
+        System.out.printf("Board %dx%d, %d in a row, %d games per pairing, %d workers, seed %d, weights %s%n",
+                this.size, this.size, this.winLength, this.gamesPerPairing, this.workers, this.seed, this.weights);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(this.workers);
+        final List<Future<long[][][]>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+
+        for (int worker = 0; worker < this.workers; worker++) {
+            final int index = worker;
+            futures.add(executor.submit(() -> this.playShare(index)));
+        }
+
+        final long[][][] results = new long[LEVELS.length][LEVELS.length][3];
+        for (final Future<long[][][]> future : futures) {
+            final long[][][] share = future.get();
+
+            for (int x = 0; x < LEVELS.length; x++) {
+                for (int o = 0; o < LEVELS.length; o++) {
+                    for (int outcome = 0; outcome < 3; outcome++) {
+                        results[x][o][outcome] += share[x][o][outcome];
+                    }
+                }
+            }
+        }
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        this.printResults(results, seconds);
+    }
+
+    // Each worker plays every n-th game of every pairing with its own AI and random generator
+    private long[][][] playShare(final int worker) throws IOException {
+        final AI ai = new AI(new TranspositionTable(1 << 16, ReplacementPolicy.DEPTH_PREFERRED), this.timeBudget, 1,
+                this.database, new Random(this.seed + worker * 0x9E3779B97F4A7C15L), AI.DEFAULT_PLAYOUTS, this.endgames, this.weights);
+        final Board board = new Board(this.size, this.winLength);
+        final int[] moves = new int[board.getCells()];
+        final long[][][] results = new long[LEVELS.length][LEVELS.length][3];
+
+        try (GameLog.Writer records = this.log == null ? null : this.log.newWriter()) {
+            for (int x = 0; x < LEVELS.length; x++) {
+                for (int o = 0; o < LEVELS.length; o++) {
+                    for (long game = worker; game < this.gamesPerPairing; game += this.workers) {
+                        board.clear();
+                        final TicTacToeState outcome = playGame(board, ai, LEVELS[x], LEVELS[o], moves);
+                        results[x][o][outcome.ordinal() - TicTacToeState.DRAW.ordinal()]++;
+
+                        if (records != null) {
+                            records.write(LEVELS[x], LEVELS[o], outcome, board.getGeometry(), moves, board.getCells() - board.countEmpty());
+                        }
+                    }
+                }
+            }
+        }
+
+        return results;
+    }
+
+    // Returns DRAW, X_WON or Y_WON; the positions played go into moves
+    static TicTacToeState playGame(final Board board, final AI ai, final Player xPlayer, final Player oPlayer, final int[] moves) {
+        while (true) {
+            final char sign = board.getSignToMove();
+            final int position = board.getPosition(ai.getCoordinates(board, sign, sign == 'X' ? xPlayer : oPlayer));
+            moves[board.getCells() - board.countEmpty()] = position;
+            board.makeMove(position, sign);
+
+            if (board.isWinThrough(position, sign)) {
+                return sign == 'X' ? TicTacToeState.X_WON : TicTacToeState.Y_WON;
+            }
+
+            if (board.isFull()) {
+                return TicTacToeState.DRAW;
+            }
+        }
+    }
+
+    private void printResults(final long[][][] results, final double seconds) {
+        System.out.println("X wins / draws / O wins, X level in rows, O level in columns");
+        System.out.printf("%-8s", "");
+        for (final Player level : LEVELS) {
+            System.out.printf("%-28s", level.name().toLowerCase());
+        }
+        System.out.println();
+
+        for (int x = 0; x < LEVELS.length; x++) {
+            System.out.printf("%-8s", LEVELS[x].name().toLowerCase());
+
+            for (int o = 0; o < LEVELS.length; o++) {
+                final long[] outcomes = results[x][o];
+                final double games = Math.max(outcomes[0] + outcomes[1] + outcomes[2], 1);
+                System.out.printf("%-28s", String.format("%.1f%% / %.1f%% / %.1f%%",
+                        100 * outcomes[1] / games, 100 * outcomes[0] / games, 100 * outcomes[2] / games));
+            }
+            System.out.println();
+        }
+
+        final long total = this.gamesPerPairing * LEVELS.length * LEVELS.length;
+        System.out.printf("Played %d games in %.2f s, %.0f games per second%n", total, seconds, total / seconds);
+    }
+}
+
+// Hosts console sessions over a local TCP socket, one virtual thread per connection. Every session has its own
+// AI and I/O. They share the read-only perfect play and endgame databases, and borrow transposition tables from
+// one pool for each HARD search, so sessions that are idle or play other levels hold no table at all.
+final class GameServer {
+    static final int DEFAULT_PORT = 4000;
+    // Each table costs 16 bytes per entry, 1 MiB in all, and the pool holds a few per processor
+    private static final int TABLE_SIZE = 1 << 16;
+    private static final int TABLES_PER_PROCESSOR = 4;
+    private static final long REPORT_INTERVAL_SECONDS = 10;
+    // Latency histogram buckets hold moves that took less than 2^bucket microseconds
+    private static final int LATENCY_BUCKETS = 40;
+
+    private final int port;
+    private final long timeBudget;
+    private final long playouts;
+    private final PerfectPlayDatabase database;
+    private final RetrogradeDatabase endgames;
+    private final GameLog log;
+    private final TranspositionTablePool tables = new TranspositionTablePool(
+            TABLES_PER_PROCESSOR * Runtime.getRuntime().availableProcessors(), TABLE_SIZE);
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong totalSessions = new AtomicLong();
+    private final AtomicLong moves = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS);
+
+    GameServer(final int port, final long timeBudget, final long playouts, final PerfectPlayDatabase database,
+               final RetrogradeDatabase endgames, final GameLog log) {
+        this.port = port;
+        this.timeBudget = timeBudget;
+        this.playouts = playouts;
+        this.database = database;
+        this.endgames = endgames;
+        this.log = log;
+    }
+
+    void run() throws IOException {
+        final ExecutorService sessions = newThreadPerTaskExecutor();
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::printMetrics, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        try (ServerSocket server = new ServerSocket(this.port, 1024, InetAddress.getLoopbackAddress())) {
+            System.out.printf("Listening on %s:%d%n", server.getInetAddress().getHostAddress(), server.getLocalPort());
+
+            while (true) {
+                final Socket socket = server.accept();
+                sessions.execute(() -> this.serve(socket));
+            }
+        } finally {
+            sessions.shutdownNow();
+            reporter.shutdownNow();
+        }
+    }
+
+    // Virtual threads arrived in Java 21; older runtimes get a plain thread per session instead
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException exception) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void serve(final Socket socket) {
+        this.activeSessions.incrementAndGet();
+        this.totalSessions.incrementAndGet();
+
+        try (socket; GameLog.Writer records = this.log == null ? null : this.log.newWriter()) {
+            socket.setTcpNoDelay(true);
+            final Scanner scanner = new Scanner(socket.getInputStream(), StandardCharsets.UTF_8);
+            final PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), true, StandardCharsets.UTF_8);
+            final AI ai = new AI(this.tables, this.timeBudget, this.database, new Random(), this.playouts, this.endgames);
+
+            new TicTacToe(ai, scanner, out, this::recordMove, false, records);
+        } catch (IOException | NoSuchElementException exception) {
+            // The client went away, nothing left to do for this session
+        } finally {
+            this.activeSessions.decrementAndGet();
+        }
+    }
+
+    private void recordMove(final long nanos) {
+        this.moves.incrementAndGet();
+        this.latencyNanos.addAndGet(nanos);
+        this.maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+        this.latencyHistogram.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(nanos / 1000), LATENCY_BUCKETS - 1));
+    }
+
+    private void printMetrics() {
+        final long count = this.moves.get();
+        System.out.printf("Sessions: %d active, %d total; AI moves: %d, latency mean %.2f ms, p50 < %s, p99 < %s, max %.2f ms%n",
+                this.activeSessions.get(), this.totalSessions.get(), count,
+                count == 0 ? 0 : this.latencyNanos.get() / 1e6 / count,
+                this.getLatencyPercentile(count, 0.5), this.getLatencyPercentile(count, 0.99), this.maxLatencyNanos.get() / 1e6);
+    }
+
+    private String getLatencyPercentile(final long count, final double fraction) {
+        long seen = 0;
+
+        for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+            seen += this.latencyHistogram.get(bucket);
+
+            if (count > 0 && seen >= fraction * count) {
+                return String.format("%.3f ms", (1L << bucket) / 1000.0);
+            }
+        }
+
+        return "n/a";
+    }
+}
+
+// Measures the hot paths the way a JMH run with the GC profiler would: a few timed warmup iterations,
+// then measured iterations reporting operations per second and bytes allocated per operation
+final class Benchmarks {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 500_000_000;
+    private static final String[] POSITIONS = {
+            "         ",
+            "    X    ",
+            "X   O    ",
+            "XO  X   O",
+            "XOX O    "
+    };
+
+    private final PerfectPlayDatabase database;
+    private final com.sun.management.ThreadMXBean threads;
+    // Every result goes here so the JIT cannot drop the work that produced it
+    private volatile int sink;
+
+    Benchmarks(final PerfectPlayDatabase database) {
+        this.database = database;
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        this.threads = bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) bean
+                : null;
+    }
+
+    void run() {
+        this.verifyAllocationFreeSearch();
+        System.out.printf("%-40s %16s %12s %16s%n", "Benchmark", "ops/s", "error", "bytes/op");
+
+        for (final String position : POSITIONS) {
+            final TranspositionTable table = new TranspositionTable(1 << 16, ReplacementPolicy.DEPTH_PREFERRED);
+            final AI ai = new AI(table, AI.DEFAULT_TIME_BUDGET, 1, null, new Random(0));
+            final Board board = createBoard(position);
+            final char sign = board.getSignToMove();
+
+            this.measure("search [" + position.replace(' ', '.') + "]", () -> {
+                table.clear();
+                return ai.getCoordinates(board, sign, Player.HARD)[0];
+            });
+        }
+
+        final AI ai = new AI(new TranspositionTable(1 << 16, ReplacementPolicy.DEPTH_PREFERRED), AI.DEFAULT_TIME_BUDGET, 1, this.database, new Random(0));
+        final Board midGame = createBoard("XO  X  O ");
+        this.measure("getWinningMoveCoordinates", () -> ai.getWinningMoveCoordinates(midGame, 'X')[0]);
+        this.measure("getRandomCoordinates", () -> ai.getRandomCoordinates(midGame)[0]);
+        this.measure("updateState", () -> TicTacToe.getState(midGame).ordinal());
+
+        for (final Player level : new Player[] {Player.EASY, Player.MEDIUM, Player.HARD}) {
+            final Board board = new Board(Board.DEFAULT_SIZE, Board.DEFAULT_SIZE);
+            final int[] moves = new int[board.getCells()];
+
+            this.measure("game " + level.name().toLowerCase() + (this.database == null ? "" : " (database)"), () -> {
+                board.clear();
+                return Tournament.playGame(board, ai, level, level, moves).ordinal();
+            });
+        }
+    }
+
+    // Once its buffers are warm, a search must not allocate at all, however many nodes it visits
+    private void verifyAllocationFreeSearch() {
+        if (this.threads == null) {
+            System.out.println("Allocation check skipped, this JVM does not count allocated bytes");
+            return;
+        }
+
+        final TranspositionTable table = new TranspositionTable(1 << 16, ReplacementPolicy.DEPTH_PREFERRED);
+        final AI ai = new AI(table, AI.DEFAULT_TIME_BUDGET, 1, null, new Random(0));
+        final Board board = new Board(7, 4);
+        board.makeMove(24, 'X');
+        board.makeMove(25, 'O');
+        board.makeMove(17, 'X');
+        final Search search = ai.getSearch(board, new SearchControl(Long.MAX_VALUE));
+        final long threadId = Thread.currentThread().getId();
+        long nodes = 0;
+        long allocated = 0;
+
+        for (int round = 0; round < 2; round++) {
+            final long nodesBefore = search.getNodes();
+            final long allocatedBefore = this.threads.getThreadAllocatedBytes(threadId);
+
+            for (int repeat = 0; repeat < 200; repeat++) {
+                table.clear();
+                this.sink = search.searchMove(23, 'O', 4, -Search.INFINITY - 1);
+            }
+
+            nodes = search.getNodes() - nodesBefore;
+            allocated = this.threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        }
+
+        System.out.printf("Allocation check: %d bytes allocated over %d search nodes, %s%n%n",
+                allocated, nodes, allocated == 0 ? "OK" : "FAILED");
+
+        if (allocated != 0) {
+            throw new IllegalStateException(String.format("The search allocated %d bytes over %d nodes", allocated, nodes));
+        }
+    }
+
+    private static Board createBoard(final String position) {
+        final Board board = new Board(Board.DEFAULT_SIZE, Board.DEFAULT_SIZE);
+
+        for (int index = 0; index < position.length(); index++) {
+            if (position.charAt(index) != ' ') {
+                board.makeMove(index, position.charAt(index));
+            }
+        }
+
+        return board;
+    }
+
+    private void measure(final String name, final IntSupplier operation) {
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS; iteration++) {
+            this.runIteration(operation);
+        }
+
+        final double[] throughputs = new double[MEASUREMENT_ITERATIONS];
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = this.threads == null ? 0 : this.threads.getThreadAllocatedBytes(threadId);
+        long operations = 0;
+
+        for (int iteration = 0; iteration < MEASUREMENT_ITERATIONS; iteration++) {
+            final long start = System.nanoTime();
+            final long count = this.runIteration(operation);
+            throughputs[iteration] = count * 1e9 / (System.nanoTime() - start);
+            operations += count;
+        }
+
+        final String allocation = this.threads == null
+                ? "n/a"
+                : String.format("%.1f", (double) (this.threads.getThreadAllocatedBytes(threadId) - allocatedBefore) / operations);
+
+        double mean = 0;
+        for (final double throughput : throughputs) {
+            mean += throughput / MEASUREMENT_ITERATIONS;
+        }
+        double variance = 0;
+        for (final double throughput : throughputs) {
+            variance += (throughput - mean) * (throughput - mean) / (MEASUREMENT_ITERATIONS - 1);
+        }
+
+        System.out.printf("%-40s %16.1f %12.1f %16s%n", name, mean, Math.sqrt(variance), allocation);
+    }
+
+    private long runIteration(final IntSupplier operation) {
+        final long end = System.nanoTime() + ITERATION_NANOS;
+        long count = 0;
+        int result = 0;
+
+        do {
+            for (int batch = 0; batch < 16; batch++) {
+                result += operation.getAsInt();
+            }
+            count += 16;
+        } while (System.nanoTime() < end);
+
+        this.sink = result;
+        return count;
+    }
+}
+
+enum TicTacToeState {
+    X_PLAYING,
+    O_PLAYING,
+    DRAW,
+    X_WON,
+    Y_WON
 }